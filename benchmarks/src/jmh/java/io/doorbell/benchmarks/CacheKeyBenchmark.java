@@ -0,0 +1,69 @@
+package io.doorbell.benchmarks;
+
+import io.doorbell.core.rest.CanonicalCacheKeyGenerator;
+import io.doorbell.core.rest.Sha1CacheKeyGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@State(Scope.Benchmark)
+public class CacheKeyBenchmark {
+
+    @Param({"2", "20"})
+    public int parameterCount;
+
+    private final Sha1CacheKeyGenerator generator = new Sha1CacheKeyGenerator();
+    private final CanonicalCacheKeyGenerator canonicalGenerator = new CanonicalCacheKeyGenerator();
+
+    private String endpoint;
+    private Map<String, String> parameters;
+    private String text;
+    private byte[] digest;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.endpoint = "https://doorbell.io/api/applications/1234/submit?key=abcdef0123456789";
+
+        this.parameters = new HashMap<>();
+        for (int i = 0; i < this.parameterCount; i++) {
+            this.parameters.put("parameter_" + i, "value with spaces & symbols " + i);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 1024) {
+            builder.append(this.endpoint);
+        }
+        this.text = builder.toString();
+
+        this.digest = new byte[20];
+        for (int i = 0; i < this.digest.length; i++) {
+            this.digest[i] = (byte) (i * 13);
+        }
+    }
+
+    @Benchmark
+    public String requestHash() throws Exception {
+        return this.generator.key(this.endpoint, this.parameters);
+    }
+
+    @Benchmark
+    public String canonicalRequestHash() throws Exception {
+        return this.canonicalGenerator.key(this.endpoint, this.parameters);
+    }
+
+    @Benchmark
+    public String sha1() throws Exception {
+        return Sha1CacheKeyGenerator.sha1(this.text);
+    }
+
+    @Benchmark
+    public String hex() {
+        return CanonicalCacheKeyGenerator.hex(this.digest);
+    }
+}
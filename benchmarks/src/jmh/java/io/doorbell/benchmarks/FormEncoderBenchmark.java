@@ -0,0 +1,54 @@
+package io.doorbell.benchmarks;
+
+import io.doorbell.core.rest.FormBodyEncoder;
+import io.doorbell.core.rest.JsonBodyEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoding a feedback submission: a handful of short fields and a message of varying length.
+ */
+@State(Scope.Benchmark)
+public class FormEncoderBenchmark {
+
+    @Param({"100", "10000"})
+    public int messageLength;
+
+    private final FormBodyEncoder formEncoder = new FormBodyEncoder();
+    private final JsonBodyEncoder jsonEncoder = new JsonBodyEncoder();
+
+    private Map<String, String> fields;
+
+    @Setup
+    public void setUp() {
+        StringBuilder message = new StringBuilder();
+        while (message.length() < this.messageLength) {
+            message.append("The app crashes when I rotate the screen, \u00fcn\u00efc\u00f6d\u00e9 & all. ");
+        }
+
+        this.fields = new LinkedHashMap<>();
+        this.fields.put("message", message.substring(0, this.messageLength));
+        this.fields.put("email", "someone@example.com");
+        this.fields.put("name", "Someone");
+        this.fields.put("language", "en");
+        this.fields.put("properties", "{\"Model\":\"Pixel 5\",\"Android Version\":\"12\",\"App Version Name\":\"1.2.3\"}");
+        this.fields.put("nps", "9");
+    }
+
+    @Benchmark
+    public String form() throws Exception {
+        return this.formEncoder.encode(this.fields);
+    }
+
+    @Benchmark
+    public String json() throws Exception {
+        return this.jsonEncoder.encode(this.fields);
+    }
+}
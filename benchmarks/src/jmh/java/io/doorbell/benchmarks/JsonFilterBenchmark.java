@@ -0,0 +1,69 @@
+package io.doorbell.benchmarks;
+
+import io.doorbell.core.rest.JsonFilter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turning a large API response into cursor rows, with and without the different kinds of filter.
+ */
+@State(Scope.Benchmark)
+public class JsonFilterBenchmark {
+
+    private static final String[] KEYS = {"id", "name", "status", "score"};
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    private JSONArray data;
+
+    private JSONObject plainFilter;
+    private JSONObject nestedFilter;
+    private JSONObject arrayFilter;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.data = new JSONArray();
+        for (int i = 0; i < this.size; i++) {
+            JSONObject o = new JSONObject();
+            o.put("id", i);
+            o.put("name", "Item " + i);
+            o.put("status", i % 3 == 0 ? "open" : "closed");
+            o.put("score", i % 11);
+            o.put("user", new JSONObject().put("id", i % 50).put("name", "User " + (i % 50)));
+            o.put("tags", new JSONArray().put("tag" + (i % 7)).put("tag" + (i % 5)));
+            this.data.put(o);
+        }
+
+        this.plainFilter = new JSONObject().put("status", "open");
+        this.nestedFilter = new JSONObject().put("user.id", 7);
+        this.arrayFilter = new JSONObject().put("tags", "tag3");
+    }
+
+    @Benchmark
+    public void selectAll(final Blackhole blackhole) throws Exception {
+        JsonFilter.select(this.data, KEYS, null, blackhole::consume);
+    }
+
+    @Benchmark
+    public void selectPlainFilter(final Blackhole blackhole) throws Exception {
+        JsonFilter.select(this.data, KEYS, this.plainFilter, blackhole::consume);
+    }
+
+    @Benchmark
+    public void selectNestedFilter(final Blackhole blackhole) throws Exception {
+        JsonFilter.select(this.data, KEYS, this.nestedFilter, blackhole::consume);
+    }
+
+    @Benchmark
+    public void selectArrayFilter(final Blackhole blackhole) throws Exception {
+        JsonFilter.select(this.data, KEYS, this.arrayFilter, blackhole::consume);
+    }
+}
@@ -0,0 +1,43 @@
+package io.doorbell.benchmarks;
+
+import io.doorbell.core.shake.SampleQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One accelerometer event going through the shake window, as delivered at SENSOR_DELAY_FASTEST.
+ * Each op adds a sample and purges whatever has left the half second window.
+ */
+@State(Scope.Thread)
+public class SampleQueueBenchmark {
+
+    /** Sensor rate, in events per second. */
+    @Param({"200", "500"})
+    public int rate;
+
+    private SampleQueue queue;
+    private long interval;
+    private long timestamp;
+    private int count;
+
+    @Setup
+    public void setUp() {
+        this.queue = new SampleQueue();
+        this.interval = 1000000000L / this.rate;
+        this.timestamp = 0;
+        this.count = 0;
+    }
+
+    @Benchmark
+    public boolean addAndCheck() {
+        this.timestamp += this.interval;
+
+        // Roughly a third of the samples accelerating, so the queue never fires and clears
+        this.queue.add(this.timestamp, this.count++ % 3 == 0);
+        return this.queue.isShaking();
+    }
+}
@@ -0,0 +1,359 @@
+package io.doorbell.core.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cached response body, with the response headers that say how long it's good for and how to
+ * revalidate it.
+ *
+ * Stored as a short header block, in the style of HTTP, followed by the body as it came. Data
+ * without the header block is read as a body with no metadata. A decoded body is a view of the
+ * data it was decoded from, not a copy.
+ *
+ * A body stored with "content-encoding: gzip" is kept compressed, and only inflated by
+ * {@link #getText()}.
+ */
+public class CacheEntry {
+
+    private static final String MAGIC = "DOORBELL-CACHE 1\n";
+    private static final String STORED_AT = "x-stored-at";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String ETAG = "etag";
+    public static final String LAST_MODIFIED = "last-modified";
+    public static final String CACHE_CONTROL = "cache-control";
+    public static final String CONTENT_ENCODING = "content-encoding";
+
+    /**
+     * The response headers worth keeping, in lower case.
+     */
+    public static final String[] HEADERS = {ETAG, LAST_MODIFIED, CACHE_CONTROL};
+
+    private final ByteBuffer body;
+    private final Map<String, String> headers;
+    private final long storedAt;
+
+    public CacheEntry(byte[] body, Map<String, String> headers, long storedAt) {
+        this(ByteBuffer.wrap(body), headers, storedAt);
+    }
+
+    private CacheEntry(ByteBuffer body, Map<String, String> headers, long storedAt) {
+        this.body = body;
+        this.storedAt = storedAt;
+
+        Map<String, String> copy = new LinkedHashMap<>();
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getValue() != null) {
+                    copy.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+                }
+            }
+        }
+        this.headers = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * An entry whose body is gzipped, either as it came from the server or here.
+     */
+    public static CacheEntry compress(byte[] body, Map<String, String> headers, long storedAt) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(body);
+        }
+
+        return CacheEntry.gzipped(compressed.toByteArray(), headers, storedAt);
+    }
+
+    public static CacheEntry gzipped(byte[] body, Map<String, String> headers, long storedAt) {
+        Map<String, String> gzipped = new LinkedHashMap<>();
+        if (headers != null) {
+            gzipped.putAll(headers);
+        }
+        gzipped.put(CONTENT_ENCODING, "gzip");
+
+        return new CacheEntry(body, gzipped, storedAt);
+    }
+
+    /**
+     * The body as stored, so still gzipped if {@link #isCompressed()}.
+     */
+    public byte[] getBody() {
+        if (this.body.hasArray() && this.body.arrayOffset() == 0 && this.body.position() == 0
+                && this.body.remaining() == this.body.array().length) {
+            return this.body.array();
+        }
+
+        byte[] body = new byte[this.body.remaining()];
+        this.body.duplicate().get(body);
+        return body;
+    }
+
+    public int getBodyLength() {
+        return this.body.remaining();
+    }
+
+    public boolean isCompressed() {
+        return "gzip".equalsIgnoreCase(this.headers.get(CONTENT_ENCODING));
+    }
+
+    /**
+     * The body decoded as UTF-8, straight from the buffer it was read into, after inflating it if
+     * it's compressed.
+     */
+    public String getText() throws IOException {
+        if (this.isCompressed()) {
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(this.body.remaining() * 4);
+            try (InputStream in = new GZIPInputStream(new BufferInputStream(this.body.duplicate()))) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    inflated.write(buffer, 0, read);
+                }
+            }
+            return inflated.toString("UTF-8");
+        }
+
+        if (this.body.hasArray()) {
+            return new String(this.body.array(), this.body.arrayOffset() + this.body.position(), this.body.remaining(), UTF_8);
+        }
+
+        return UTF_8.decode(this.body.duplicate()).toString();
+    }
+
+    public Map<String, String> getHeaders() {
+        return this.headers;
+    }
+
+    public String getHeader(String name) {
+        return this.headers.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Wall clock time, in milliseconds, at which the response was stored or last revalidated.
+     */
+    public long getStoredAt() {
+        return this.storedAt;
+    }
+
+    /**
+     * @return milliseconds since the response was stored, or Long.MAX_VALUE if that isn't known
+     */
+    public long getAge(long now) {
+        return this.storedAt > 0 ? Math.max(0, now - this.storedAt) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the Cache-Control max-age in milliseconds, or -1 if the server didn't send one
+     */
+    public long getMaxAge() {
+        return CacheEntry.seconds(this.getCacheControl("max-age"));
+    }
+
+    /**
+     * @return the Cache-Control stale-while-revalidate in milliseconds, or -1 if the server didn't
+     *         send one
+     */
+    public long getStaleWhileRevalidate() {
+        return CacheEntry.seconds(this.getCacheControl("stale-while-revalidate"));
+    }
+
+    public String getETag() {
+        return this.headers.get(ETAG);
+    }
+
+    public String getLastModified() {
+        return this.headers.get(LAST_MODIFIED);
+    }
+
+    public boolean hasValidators() {
+        return this.getETag() != null || this.getLastModified() != null;
+    }
+
+    /**
+     * The same body, stored again now with the headers of a 304 on top of the ones it had.
+     */
+    public CacheEntry revalidated(Map<String, String> headers, long now) {
+        Map<String, String> merged = new LinkedHashMap<>(this.headers);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getValue() != null) {
+                    merged.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+                }
+            }
+        }
+
+        return new CacheEntry(this.body, merged, now);
+    }
+
+    /**
+     * @return the value of a Cache-Control directive, "" for one without a value, or null if the
+     *         directive isn't there
+     */
+    public String getCacheControl(String directive) {
+        return CacheEntry.cacheControl(this.headers.get(CACHE_CONTROL), directive);
+    }
+
+    public static String cacheControl(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return null;
+        }
+
+        for (String part : cacheControl.split(",")) {
+            part = part.trim();
+
+            int equals = part.indexOf('=');
+            String name = equals >= 0 ? part.substring(0, equals).trim() : part;
+            if (name.equalsIgnoreCase(directive)) {
+                return equals >= 0 ? part.substring(equals + 1).trim().replace("\"", "") : "";
+            }
+        }
+
+        return null;
+    }
+
+    private static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(value)) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public byte[] encode() {
+        StringBuilder header = new StringBuilder(MAGIC);
+        header.append(STORED_AT).append(": ").append(this.storedAt).append('\n');
+        for (Map.Entry<String, String> h : this.headers.entrySet()) {
+            header.append(h.getKey()).append(": ").append(h.getValue().replace('\n', ' ')).append('\n');
+        }
+        header.append('\n');
+
+        byte[] headerBytes = header.toString().getBytes(UTF_8);
+        byte[] encoded = new byte[headerBytes.length + this.body.remaining()];
+        System.arraycopy(headerBytes, 0, encoded, 0, headerBytes.length);
+        this.body.duplicate().get(encoded, headerBytes.length, this.body.remaining());
+        return encoded;
+    }
+
+    public static CacheEntry decode(byte[] data) {
+        return CacheEntry.decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes an entry from the buffer's remaining bytes, e.g. a memory-mapped file, without
+     * copying the body out of it.
+     */
+    public static CacheEntry decode(ByteBuffer data) {
+        byte[] magic = MAGIC.getBytes(UTF_8);
+        if (!CacheEntry.startsWith(data, magic)) {
+            return new CacheEntry(data.slice(), null, 0);
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        long storedAt = 0;
+
+        int limit = data.limit();
+        int position = data.position() + magic.length;
+        while (position < limit) {
+            int end = position;
+            while (end < limit && data.get(end) != '\n') {
+                end++;
+            }
+
+            if (end == position) {
+                // The blank line before the body
+                position++;
+                break;
+            }
+
+            String line = CacheEntry.string(data, position, end - position);
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equals(STORED_AT)) {
+                    try {
+                        storedAt = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        storedAt = 0;
+                    }
+                } else {
+                    headers.put(name, value);
+                }
+            }
+
+            position = end + 1;
+        }
+
+        ByteBuffer body = data.duplicate();
+        body.position(Math.min(position, limit));
+
+        return new CacheEntry(body.slice(), headers, storedAt);
+    }
+
+    private static boolean startsWith(ByteBuffer data, byte[] prefix) {
+        if (data.remaining() < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(data.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String string(ByteBuffer data, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer line = data.duplicate();
+        line.position(offset);
+        line.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.doorbell.core.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index of the entries in a {@link DiskCache} by the endpoint they were fetched from and the tags
+ * they were given, so they can be found by tag or endpoint prefix without reading any of them.
+ *
+ * The endpoint and tags are kept in the entry's metadata, see {@link #metadata}, and the index is
+ * kept up to date by listening to the cache. Lookups cost the number of matches, plus a log of
+ * the number of endpoints for a prefix.
+ */
+public class CacheIndex implements DiskCache.Listener {
+
+    private static final char SEPARATOR = '\n';
+
+    private final TreeMap<String, Set<String>> endpoints = new TreeMap<>();
+    private final Map<String, Set<String>> tags = new HashMap<>();
+
+    // What every key was indexed under, to take it out again
+    private final Map<String, Item> items = new HashMap<>();
+
+    private static class Item {
+        final String endpoint;
+        final List<String> tags;
+
+        Item(String endpoint, List<String> tags) {
+            this.endpoint = endpoint;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * @return the metadata to put an entry with, for it to be indexed under the endpoint and tags
+     */
+    public static String metadata(String endpoint, Collection<String> tags) {
+        StringBuilder metadata = new StringBuilder(CacheIndex.clean(endpoint));
+        if (tags != null) {
+            for (String tag : tags) {
+                metadata.append(SEPARATOR).append(CacheIndex.clean(tag));
+            }
+        }
+        return metadata.toString();
+    }
+
+    @Override
+    public synchronized void onPut(String key, String metadata) {
+        this.onRemove(key);
+
+        if (metadata == null) {
+            return;
+        }
+
+        int end = metadata.indexOf(SEPARATOR);
+        String endpoint = end == -1 ? metadata : metadata.substring(0, end);
+
+        List<String> tags = new ArrayList<>();
+        while (end != -1) {
+            int start = end + 1;
+            end = metadata.indexOf(SEPARATOR, start);
+            tags.add(end == -1 ? metadata.substring(start) : metadata.substring(start, end));
+        }
+
+        this.items.put(key, new Item(endpoint, tags));
+        CacheIndex.add(this.endpoints, endpoint, key);
+        for (String tag : tags) {
+            CacheIndex.add(this.tags, tag, key);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(String key) {
+        Item item = this.items.remove(key);
+        if (item == null) {
+            return;
+        }
+
+        CacheIndex.remove(this.endpoints, item.endpoint, key);
+        for (String tag : item.tags) {
+            CacheIndex.remove(this.tags, tag, key);
+        }
+    }
+
+    @Override
+    public synchronized void onClear() {
+        this.endpoints.clear();
+        this.tags.clear();
+        this.items.clear();
+    }
+
+    /**
+     * @return the keys of the entries with the tag
+     */
+    public synchronized Set<String> getKeysForTag(String tag) {
+        Set<String> keys = this.tags.get(tag);
+        return keys != null ? new HashSet<>(keys) : Collections.<String>emptySet();
+    }
+
+    /**
+     * @return the keys of the entries whose endpoint starts with the prefix
+     */
+    public synchronized Set<String> getKeysForEndpointPrefix(String prefix) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Set<String>> e : this.endpoints.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                // Sorted, so none of the rest do either
+                break;
+            }
+            keys.addAll(e.getValue());
+        }
+        return keys;
+    }
+
+    public synchronized int getCount() {
+        return this.items.size();
+    }
+
+    private static void add(Map<String, Set<String>> index, String name, String key) {
+        Set<String> keys = index.get(name);
+        if (keys == null) {
+            keys = new HashSet<>();
+            index.put(name, keys);
+        }
+        keys.add(key);
+    }
+
+    private static void remove(Map<String, Set<String>> index, String name, String key) {
+        Set<String> keys = index.get(name);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            index.remove(name);
+        }
+    }
+
+    private static String clean(String text) {
+        return text != null ? text.replace(SEPARATOR, ' ') : "";
+    }
+}
@@ -0,0 +1,527 @@
+package io.doorbell.core.cache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of entries packed into a single append-only file, kept under a byte budget by evicting
+ * the least recently used entries.
+ *
+ * Every write appends a record with the entry's key, metadata and contents, every removal appends
+ * a tombstone, and every read appends a record of just the key, so the order entries were used in
+ * survives reopening. Each record starts with a short header holding the lengths and a CRC32 of
+ * the rest. The index of where each entry lives is only kept in memory, and rebuilt on open by
+ * reading the headers, keys and metadata from start to end, which is also when a {@link Listener}
+ * hears about the entries already there. A record cut short by a kill, and anything after it, is
+ * dropped then. Contents are checked against their CRC32 when read, and an entry that doesn't
+ * match is dropped like one that was never there.
+ *
+ * Replaced and removed records stay in the file until it's compacted: once they take up more
+ * room than the live ones, the live records are copied, least recently used first, into a new file that then
+ * replaces it. This happens on the thread doing the write.
+ */
+public class DiskCache {
+
+    private static final String SEGMENT_FILE = "cache.seg";
+    private static final String COMPACT_FILE = "cache.seg.tmp";
+
+    // Written by older versions, with a file per entry
+    private static final String LEGACY_JOURNAL_FILE = "journal";
+
+    private static final int RECORD_MAGIC = 0xD00BCA5F;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte ACCESS = 3;
+
+    // Magic, type, key length, metadata length, contents length, CRC32
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 2 + 4 + 4;
+
+    private static final int MAX_KEY_LENGTH = 0xffff;
+    private static final int MAX_METADATA_LENGTH = 0xffff;
+
+    // Entries this big are memory-mapped rather than read
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    // Dead records are left alone until there's at least this much of them
+    private static final long COMPACT_THRESHOLD = 512 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private long maxSize;
+    private final Listener listener;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    // Bytes taken up by the live entries' records, the rest of the file is dead
+    private long liveBytes = 0;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long end = 0;
+
+    /**
+     * Told about every entry that's added or goes away, whatever the reason, e.g. to keep an
+     * index of the entries' metadata. Called with the cache locked, on the thread using it.
+     */
+    public interface Listener {
+        void onPut(String key, String metadata);
+
+        void onRemove(String key);
+
+        void onClear();
+    }
+
+    public DiskCache(File directory, long maxSize) throws IOException {
+        this(directory, maxSize, null);
+    }
+
+    public DiskCache(File directory, long maxSize, Listener listener) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.listener = listener;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+
+        if (new File(directory, LEGACY_JOURNAL_FILE).exists()) {
+            // The file per entry layout, its entries are dropped rather than moved over
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (!f.getName().equals(SEGMENT_FILE)) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+
+        // Left by a compaction that didn't finish
+        new File(directory, COMPACT_FILE).delete();
+
+        this.open();
+        this.readSegment();
+        this.trimTo(this.maxSize);
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    public synchronized boolean contains(String key) {
+        return this.entries.containsKey(key);
+    }
+
+    /**
+     * @return the entry's contents, or null if there's no such entry
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        ByteBuffer data = this.getBuffer(key);
+        if (data == null) {
+            return null;
+        } else if (data.hasArray() && data.array().length == data.remaining()) {
+            return data.array();
+        }
+
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the entry with a single positioned read into a buffer of its exact size, or maps it
+     * into memory if it's large. A mapped entry stays readable after it's removed, and after the
+     * cache is cleared or compacted: an open file is only ever replaced, never cut short.
+     *
+     * @return the entry's contents, or null if there's no such entry
+     */
+    public synchronized ByteBuffer getBuffer(String key) throws IOException {
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // The key and metadata come along, for the checksum
+        long checked = entry.getRecordSize() - HEADER_SIZE;
+        ByteBuffer record;
+        if (entry.length >= MAP_THRESHOLD) {
+            record = this.channel.map(FileChannel.MapMode.READ_ONLY, entry.offset + HEADER_SIZE, checked);
+        } else {
+            record = ByteBuffer.allocate((int) checked);
+            this.readFully(record, entry.offset + HEADER_SIZE);
+            record.flip();
+        }
+
+        if (entry.checksum != DiskCache.checksum(record)) {
+            this.removeEntry(key);
+            return null;
+        }
+
+        // Always dead, like a tombstone
+        this.append(ACCESS, DiskCache.bytes(key, MAX_KEY_LENGTH), new byte[0], new byte[0]);
+        this.compactIfWasteful();
+
+        record.position(entry.keyLength + entry.metadataLength);
+        return record.slice();
+    }
+
+    public synchronized void put(String key, byte[] data) throws IOException {
+        this.put(key, data, null);
+    }
+
+    /**
+     * @param metadata kept with the entry and handed to the {@link Listener}, up to 64KB of it
+     */
+    public synchronized void put(String key, byte[] data, String metadata) throws IOException {
+        byte[] keyBytes = DiskCache.bytes(key, MAX_KEY_LENGTH);
+        byte[] metadataBytes = metadata != null ? DiskCache.bytes(metadata, MAX_METADATA_LENGTH) : new byte[0];
+
+        long offset = this.append(PUT, keyBytes, metadataBytes, data);
+
+        Entry entry = new Entry(offset, keyBytes.length, metadataBytes.length, data.length, DiskCache.checksum(keyBytes, metadataBytes, data));
+        Entry previous = this.entries.put(key, entry);
+        this.size += data.length;
+        this.liveBytes += entry.getRecordSize();
+        if (previous != null) {
+            this.size -= previous.length;
+            this.liveBytes -= previous.getRecordSize();
+        }
+
+        if (this.listener != null) {
+            this.listener.onPut(key, metadata);
+        }
+
+        this.trimTo(this.maxSize);
+        this.compactIfWasteful();
+    }
+
+    public synchronized void remove(String key) throws IOException {
+        if (this.entries.containsKey(key)) {
+            this.removeEntry(key);
+            this.compactIfWasteful();
+        }
+    }
+
+    /**
+     * Removes every entry, by replacing the file with an empty one.
+     */
+    public synchronized void clear() throws IOException {
+        // Rather than truncating the file, which entries handed out mapped may still be reading
+        File temp = new File(this.directory, COMPACT_FILE);
+        try (RandomAccessFile empty = new RandomAccessFile(temp, "rw")) {
+            empty.setLength(0);
+        }
+        this.replaceSegment(temp);
+
+        this.entries.clear();
+        this.size = 0;
+        this.liveBytes = 0;
+        this.end = 0;
+
+        if (this.listener != null) {
+            this.listener.onClear();
+        }
+    }
+
+    /**
+     * Rewrites the file with only the live entries.
+     */
+    public synchronized void compact() throws IOException {
+        File temp = new File(this.directory, COMPACT_FILE);
+        LinkedHashMap<String, Entry> compacted = new LinkedHashMap<>(16, 0.75f, true);
+        long position = 0;
+
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"); FileChannel outChannel = out.getChannel()) {
+            outChannel.truncate(0);
+
+            // Least recently used first, so the order survives reopening
+            for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                Entry entry = e.getValue();
+                long recordSize = entry.getRecordSize();
+
+                long copied = 0;
+                while (copied < recordSize) {
+                    long transferred = this.channel.transferTo(entry.offset + copied, recordSize - copied, outChannel);
+                    if (transferred <= 0) {
+                        throw new EOFException("Record of " + e.getKey() + " is cut short");
+                    }
+                    copied += transferred;
+                }
+
+                compacted.put(e.getKey(), new Entry(position, entry.keyLength, entry.metadataLength, entry.length, entry.checksum));
+                position += recordSize;
+            }
+
+            outChannel.force(true);
+        }
+
+        this.replaceSegment(temp);
+
+        this.entries.clear();
+        this.entries.putAll(compacted);
+        this.end = position;
+        this.liveBytes = position;
+    }
+
+    public synchronized void setMaxSize(long maxSize) throws IOException {
+        this.maxSize = maxSize;
+        this.trimTo(maxSize);
+        this.compactIfWasteful();
+    }
+
+    public synchronized long getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return the size of the live entries' contents
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the size of the file, dead records included
+     */
+    public synchronized long getFileSize() {
+        return this.end;
+    }
+
+    public synchronized int getCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Moves the file into place of the segment and reopens it. Mappings of the old one stay valid.
+     */
+    private void replaceSegment(File temp) throws IOException {
+        File segment = new File(this.directory, SEGMENT_FILE);
+        this.file.close();
+        boolean renamed = temp.renameTo(segment);
+        this.open();
+
+        if (!renamed) {
+            temp.delete();
+            throw new IOException("Couldn't replace " + segment);
+        }
+    }
+
+    private void open() throws IOException {
+        this.file = new RandomAccessFile(new File(this.directory, SEGMENT_FILE), "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    private void removeEntry(String key) throws IOException {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.size -= entry.length;
+            this.liveBytes -= entry.getRecordSize();
+        }
+
+        this.appendTombstone(key);
+
+        if (this.listener != null) {
+            this.listener.onRemove(key);
+        }
+    }
+
+    private void appendTombstone(String key) throws IOException {
+        this.append(REMOVE, DiskCache.bytes(key, MAX_KEY_LENGTH), new byte[0], new byte[0]);
+    }
+
+    /**
+     * @return the offset of the record
+     */
+    private long append(byte type, byte[] key, byte[] metadata, byte[] data) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.put(type);
+        header.putShort((short) key.length);
+        header.putShort((short) metadata.length);
+        header.putInt(data.length);
+        header.putInt(DiskCache.checksum(key, metadata, data));
+        header.flip();
+
+        ByteBuffer[] record = {header, ByteBuffer.wrap(key), ByteBuffer.wrap(metadata), ByteBuffer.wrap(data)};
+        long recordSize = HEADER_SIZE + key.length + metadata.length + (long) data.length;
+
+        long offset = this.end;
+        this.channel.position(offset);
+        long written = 0;
+        while (written < recordSize) {
+            written += this.channel.write(record);
+        }
+        this.end += recordSize;
+
+        return offset;
+    }
+
+    private void trimTo(long maxSize) throws IOException {
+        Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        while (this.size > maxSize && eldest.hasNext()) {
+            Map.Entry<String, Entry> entry = eldest.next();
+            this.size -= entry.getValue().length;
+            this.liveBytes -= entry.getValue().getRecordSize();
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+
+        for (String key : evicted) {
+            this.appendTombstone(key);
+
+            if (this.listener != null) {
+                this.listener.onRemove(key);
+            }
+        }
+    }
+
+    private void compactIfWasteful() throws IOException {
+        long dead = this.end - this.liveBytes;
+        if (dead > COMPACT_THRESHOLD && dead > this.liveBytes) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the record headers, in the order they were written or read.
+     */
+    private void readSegment() throws IOException {
+        long fileSize = this.channel.size();
+        long position = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            this.readFully(header, position);
+            header.flip();
+
+            int magic = header.getInt();
+            byte type = header.get();
+            int keyLength = header.getShort() & 0xffff;
+            int metadataLength = header.getShort() & 0xffff;
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            long next = position + HEADER_SIZE + keyLength + metadataLength + (long) length;
+            if (magic != RECORD_MAGIC || (type != PUT && type != REMOVE && type != ACCESS) || length < 0 || next > fileSize) {
+                // Cut short by a kill, nothing after it can be trusted
+                break;
+            }
+
+            // The key and metadata sit next to each other, so one read
+            ByteBuffer names = ByteBuffer.allocate(keyLength + metadataLength);
+            this.readFully(names, position + HEADER_SIZE);
+            String key = new String(names.array(), 0, keyLength, UTF_8);
+
+            if (type == ACCESS) {
+                // Moves the entry to the end of the order
+                this.entries.get(key);
+                position = next;
+                continue;
+            }
+
+            // Removed first, so the entry moves to the end of the order
+            Entry previous = this.entries.remove(key);
+            if (previous != null) {
+                this.size -= previous.length;
+                this.liveBytes -= previous.getRecordSize();
+            }
+
+            if (type == PUT) {
+                Entry entry = new Entry(position, keyLength, metadataLength, length, checksum);
+                this.entries.put(key, entry);
+                this.size += length;
+                this.liveBytes += entry.getRecordSize();
+
+                if (this.listener != null) {
+                    this.listener.onPut(key, metadataLength > 0 ? new String(names.array(), keyLength, metadataLength, UTF_8) : null);
+                }
+            } else if (previous != null && this.listener != null) {
+                this.listener.onRemove(key);
+            }
+
+            position = next;
+        }
+
+        if (position < fileSize) {
+            this.channel.truncate(position);
+        }
+        this.end = position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static byte[] bytes(String text, int maxLength) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        if (bytes.length > maxLength) {
+            throw new IOException("Too long: " + text);
+        }
+        return bytes;
+    }
+
+    private static int checksum(byte[] key, byte[] metadata, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(key, 0, key.length);
+        crc.update(metadata, 0, metadata.length);
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            // CRC32 only takes buffers from API 26 on
+            ByteBuffer remaining = data.duplicate();
+            byte[] chunk = new byte[8192];
+            while (remaining.hasRemaining()) {
+                int length = Math.min(chunk.length, remaining.remaining());
+                remaining.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static class Entry {
+        final long offset;
+        final int keyLength;
+        final int metadataLength;
+        final int length;
+        final int checksum;
+
+        Entry(long offset, int keyLength, int metadataLength, int length, int checksum) {
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.metadataLength = metadataLength;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        long getRecordSize() {
+            return HEADER_SIZE + this.keyLength + this.metadataLength + (long) this.length;
+        }
+    }
+}
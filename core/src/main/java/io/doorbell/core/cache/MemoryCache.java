@@ -0,0 +1,120 @@
+package io.doorbell.core.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache bounded by the total size of its values, rather than their number.
+ * The size of each value is whatever the caller says it is when putting it, usually an estimate
+ * of the bytes it holds on to.
+ */
+public class MemoryCache<V> {
+
+    private final LinkedHashMap<String, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxSize;
+    private long size = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    private static class Entry<V> {
+        final V value;
+        final long size;
+
+        Entry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    public MemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized V get(String key) {
+        Entry<V> entry = this.map.get(key);
+        if (entry == null) {
+            this.missCount++;
+            return null;
+        }
+
+        this.hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * Values bigger than the whole cache aren't kept, and drop whatever was stored for the key.
+     */
+    public synchronized void put(String key, V value, long size) {
+        Entry<V> previous = this.map.remove(key);
+        if (previous != null) {
+            this.size -= previous.size;
+        }
+
+        if (size > this.maxSize) {
+            return;
+        }
+
+        this.map.put(key, new Entry<>(value, size));
+        this.size += size;
+
+        this.trimTo(this.maxSize);
+    }
+
+    public synchronized void remove(String key) {
+        Entry<V> previous = this.map.remove(key);
+        if (previous != null) {
+            this.size -= previous.size;
+        }
+    }
+
+    public synchronized void clear() {
+        this.map.clear();
+        this.size = 0;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        this.trimTo(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    private void trimTo(long maxSize) {
+        Iterator<Map.Entry<String, Entry<V>>> eldest = this.map.entrySet().iterator();
+        while (this.size > maxSize && eldest.hasNext()) {
+            this.size -= eldest.next().getValue().size;
+            eldest.remove();
+            this.evictionCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryCache[size=" + this.size + "/" + this.maxSize
+                + ", hits=" + this.hitCount
+                + ", misses=" + this.missCount
+                + ", evictions=" + this.evictionCount + "]";
+    }
+}
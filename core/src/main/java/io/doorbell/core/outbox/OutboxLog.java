@@ -0,0 +1,185 @@
+package io.doorbell.core.outbox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of lines that are appended and then consumed in order.
+ *
+ * A separate offset file records how far the log has been consumed, so consuming never has to
+ * rewrite the log, and once everything is consumed both files are removed. Only lines ending in a
+ * newline are read, and an append always starts on a line of its own, so a line cut short by a
+ * kill is never glued to the next one. A line that can't be parsed is stepped over for good once
+ * everything before it has been consumed.
+ *
+ * Lines are consumed at least once: one that was read but not yet acknowledged when the process
+ * died is read again, as is everything when the offset can't be read. Whatever consumes them has
+ * to cope with duplicates.
+ *
+ * Not thread safe, use it from one thread at a time.
+ */
+public class OutboxLog {
+
+    private static final String LOG_FILE = "outbox.log";
+    private static final String OFFSET_FILE = "outbox.offset";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    public interface Parser<T> {
+        /**
+         * @return the line's value, or null if it's unreadable
+         */
+        T parse(String line);
+    }
+
+    public static class Record<T> {
+        public final T value;
+
+        /**
+         * The offset right after the line, to {@link #acknowledge} it and everything before it.
+         */
+        public final long end;
+
+        Record(T value, long end) {
+            this.value = value;
+            this.end = end;
+        }
+    }
+
+    public OutboxLog(File directory) {
+        this.directory = directory;
+    }
+
+    public void append(String line) throws IOException {
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            throw new IOException("Couldn't create " + this.directory);
+        }
+
+        File log = new File(this.directory, LOG_FILE);
+        boolean torn = false;
+        if (log.length() > 0) {
+            try (RandomAccessFile file = new RandomAccessFile(log, "r")) {
+                file.seek(file.length() - 1);
+                torn = file.read() != '\n';
+            }
+        }
+
+        try (OutputStream out = new FileOutputStream(log, true)) {
+            out.write(((torn ? "\n" : "") + line + "\n").getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * @return up to limit of the readable lines that haven't been acknowledged yet, in order
+     */
+    public <T> List<Record<T>> read(int limit, Parser<T> parser) throws IOException {
+        List<Record<T>> records = new ArrayList<>();
+
+        File log = new File(this.directory, LOG_FILE);
+        if (!log.exists()) {
+            return records;
+        }
+
+        long offset = this.readOffset();
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(log))) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long s = in.skip(offset - skipped);
+                if (s <= 0) {
+                    break;
+                }
+                skipped += s;
+            }
+
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = offset;
+            int b;
+            while (records.size() < limit && (b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+
+                T value = parser.parse(new String(line.toByteArray(), UTF_8));
+                line.reset();
+
+                if (value == null) {
+                    if (records.isEmpty()) {
+                        // Nothing before it is waiting to be delivered, so it can go for good
+                        try {
+                            this.writeOffset(position);
+                        } catch (IOException e) {
+                            // Stepped over again next time
+                        }
+                    }
+                    continue;
+                }
+
+                records.add(new Record<>(value, position));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Marks everything up to the end of a record as consumed.
+     */
+    public void acknowledge(long end) throws IOException {
+        File log = new File(this.directory, LOG_FILE);
+        if (end >= log.length()) {
+            // Everything went out, start over with an empty log
+            log.delete();
+            new File(this.directory, OFFSET_FILE).delete();
+        } else {
+            this.writeOffset(end);
+        }
+    }
+
+    long readOffset() throws IOException {
+        File file = new File(this.directory, OFFSET_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[32];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                contents.write(buffer, 0, read);
+            }
+            return Long.parseLong(new String(contents.toByteArray(), UTF_8).trim());
+        } catch (NumberFormatException e) {
+            // Start over, at the cost of reading again what was already consumed
+            return 0;
+        }
+    }
+
+    private void writeOffset(long offset) throws IOException {
+        File file = new File(this.directory, OFFSET_FILE);
+        File temp = new File(this.directory, OFFSET_FILE + ".tmp");
+
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(Long.toString(offset).getBytes(UTF_8));
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Couldn't update " + file);
+        }
+    }
+}
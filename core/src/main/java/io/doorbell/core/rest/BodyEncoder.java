@@ -0,0 +1,13 @@
+package io.doorbell.core.rest;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Turns request parameters into a request body.
+ */
+public interface BodyEncoder {
+    String getContentType();
+
+    String encode(Map<String, String> fields) throws IOException;
+}
@@ -0,0 +1,11 @@
+package io.doorbell.core.rest;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Names the cache entry a request is stored under.
+ */
+public interface CacheKeyGenerator {
+    String key(String endpoint, Map<String, String> parameters) throws IOException;
+}
@@ -0,0 +1,153 @@
+package io.doorbell.core.rest;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keys a request by the SHA-1, in hex, of its endpoint and its parameters sorted by name, so the
+ * same request always gets the same key whatever order its parameters were added in.
+ *
+ * Every string is written as its length followed by its UTF-8 bytes, straight into the digest.
+ * The digest and the buffers are kept per thread, so a key costs the sorted names and the key
+ * itself.
+ */
+public class CanonicalCacheKeyGenerator implements CacheKeyGenerator {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            try {
+                return new State(MessageDigest.getInstance("SHA-1"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    @Override
+    public String key(String endpoint, Map<String, String> parameters) throws IOException {
+        State state;
+        try {
+            state = STATE.get();
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getCause());
+        }
+
+        state.writeString(endpoint);
+
+        if (parameters != null && !parameters.isEmpty()) {
+            String[] names = parameters.keySet().toArray(new String[parameters.size()]);
+            Arrays.sort(names);
+
+            state.writeInt(names.length);
+            for (String name : names) {
+                state.writeString(name);
+                state.writeString(parameters.get(name));
+            }
+        } else {
+            state.writeInt(0);
+        }
+
+        return state.finish();
+    }
+
+    /**
+     * @return the data in lower case hex
+     */
+    public static String hex(byte[] data) {
+        char[] hex = new char[data.length * 2];
+        CanonicalCacheKeyGenerator.hex(data, hex);
+        return new String(hex);
+    }
+
+    private static void hex(byte[] data, char[] out) {
+        for (int i = 0; i < data.length; i++) {
+            out[i * 2] = HEX[(data[i] >>> 4) & 0x0f];
+            out[i * 2 + 1] = HEX[data[i] & 0x0f];
+        }
+    }
+
+    private static class State {
+        final MessageDigest digest;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final char[] hex;
+        int position = 0;
+
+        State(MessageDigest digest) {
+            this.digest = digest;
+            this.hex = new char[digest.getDigestLength() * 2];
+        }
+
+        void writeInt(int value) {
+            if (this.position > BUFFER_SIZE - 4) {
+                this.flush();
+            }
+
+            this.buffer[this.position++] = (byte) (value >>> 24);
+            this.buffer[this.position++] = (byte) (value >>> 16);
+            this.buffer[this.position++] = (byte) (value >>> 8);
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        /**
+         * Writes the length in chars, -1 for null, then the UTF-8 bytes. Lone surrogates are
+         * written as '?', like String.getBytes does.
+         */
+        void writeString(String text) {
+            if (text == null) {
+                this.writeInt(-1);
+                return;
+            }
+
+            int length = text.length();
+            this.writeInt(length);
+
+            for (int i = 0; i < length; i++) {
+                if (this.position > BUFFER_SIZE - 4) {
+                    this.flush();
+                }
+
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    this.buffer[this.position++] = (byte) c;
+                } else if (c < 0x800) {
+                    this.buffer[this.position++] = (byte) (0xc0 | (c >> 6));
+                    this.buffer[this.position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    this.buffer[this.position++] = (byte) (0xf0 | (codePoint >> 18));
+                    this.buffer[this.position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    this.buffer[this.position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    this.buffer[this.position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    this.buffer[this.position++] = '?';
+                } else {
+                    this.buffer[this.position++] = (byte) (0xe0 | (c >> 12));
+                    this.buffer[this.position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    this.buffer[this.position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        void flush() {
+            this.digest.update(this.buffer, 0, this.position);
+            this.position = 0;
+        }
+
+        /**
+         * Hashes what's been written and resets for the next key.
+         */
+        String finish() {
+            this.flush();
+            CanonicalCacheKeyGenerator.hex(this.digest.digest(), this.hex);
+            return new String(this.hex);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.doorbell.core.rest;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * Encodes the parameters as a form. Every field is followed by an ampersand, the last one
+ * included, as the API has always been sent.
+ */
+public class FormBodyEncoder implements BodyEncoder {
+
+    @Override
+    public String getContentType() {
+        return "application/x-www-form-urlencoded";
+    }
+
+    @Override
+    public String encode(Map<String, String> fields) throws IOException {
+        StringBuilder data = new StringBuilder();
+
+        for (String key : fields.keySet()) {
+            data.append(URLEncoder.encode(key, "utf-8")).append("=").append(URLEncoder.encode(fields.get(key), "utf-8")).append("&");
+        }
+
+        return data.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package io.doorbell.core.rest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Encodes the parameters as a JSON object of strings.
+ */
+public class JsonBodyEncoder implements BodyEncoder {
+
+    @Override
+    public String getContentType() {
+        return "application/json";
+    }
+
+    @Override
+    public String encode(Map<String, String> fields) throws IOException {
+        JSONObject data = new JSONObject();
+
+        try {
+            for (String key : fields.keySet()) {
+                data.put(key, fields.get(key));
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+
+        return data.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package io.doorbell.core.rest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.StringTokenizer;
+
+/**
+ * Picks the objects of a JSON array that match a filter, and the columns of each.
+ *
+ * A filter is an object of key/value pairs that all have to match. Keys can reach into nested
+ * objects with dots ("user.id"), and a key holding an array matches when any of its items does.
+ */
+public final class JsonFilter {
+
+    public interface RowSink {
+        void add(Object[] row);
+    }
+
+    private JsonFilter() {
+    }
+
+    /**
+     * Hands the values of {@code keys}, in order, of every object matching the filter to the sink.
+     * Missing and null values are passed as null.
+     */
+    public static void select(JSONArray data, String[] keys, JSONObject filter, RowSink sink) throws JSONException {
+        for (int j = 0; j < data.length(); j++) {
+            JSONObject o = data.getJSONObject(j);
+            if (JsonFilter.matches(o, filter)) {
+                Object[] row = new Object[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    String key = keys[i];
+                    if (o.has(key) && !o.isNull(key)) {
+                        row[i] = o.get(key);
+                    }
+                }
+                sink.add(row);
+            }
+        }
+    }
+
+    public static boolean matches(JSONObject data, JSONObject filter) throws JSONException {
+        if (filter == null) {
+            return true;
+        }
+
+        boolean ok = true;
+
+        JSONArray names = filter.names();
+        if (names != null) {
+            for (int i = 0; i < names.length(); i++) {
+                String key = names.getString(i);
+
+                if (key.contains(".")) {
+                    StringTokenizer tokens = new StringTokenizer(key, ".");
+
+                    JSONObject tempData = new JSONObject(data.toString());
+
+                    String token = null;
+                    while (tokens.hasMoreTokens()) {
+                        token = tokens.nextToken();
+
+                        // if this isn't the last one, keep getting the object
+                        if (tokens.hasMoreTokens()) {
+                            if (tempData.has(token) && !tempData.isNull(token)) {
+                                tempData = tempData.getJSONObject(token);
+                            } else {
+                                ok = false;
+                                break;
+                            }
+                        }
+                    }
+
+                    if (token != null) {
+                        if (tempData.has(token)) {
+                            if (!tempData.get(token).equals(filter.get(key))) {
+                                ok = false;
+                                break;
+                            }
+                        }
+                    }
+                } else if (data.has(key) && data.get(key) instanceof JSONArray) {
+                    ok = false;
+
+                    JSONArray array = data.getJSONArray(key);
+                    for (int j = 0; j < array.length(); j++) {
+                        if (array.get(j).equals(filter.get(key))) {
+                            ok = true;
+                            break;
+                        }
+                    }
+
+                    break;
+                } else {
+                    if (data.has(key)) {
+                        if (!data.get(key).equals(filter.get(key))) {
+                            ok = false;
+                            break;
+                        }
+                    } else {
+                        ok = false;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return ok;
+    }
+}
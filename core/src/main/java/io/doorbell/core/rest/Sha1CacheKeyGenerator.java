@@ -0,0 +1,41 @@
+package io.doorbell.core.rest;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Keys a request by the SHA-1, in hex, of its endpoint and parameters, in the map's iteration
+ * order. See {@link CanonicalCacheKeyGenerator} for keys that don't depend on it.
+ */
+public class Sha1CacheKeyGenerator implements CacheKeyGenerator {
+
+    @Override
+    public String key(String endpoint, Map<String, String> parameters) throws IOException {
+        StringBuilder query = new StringBuilder(endpoint);
+
+        for (String key : parameters.keySet()) {
+            query.append(URLEncoder.encode(key, "utf-8")).append("=").append(URLEncoder.encode(parameters.get(key), "utf-8")).append("&");
+        }
+
+        try {
+            return Sha1CacheKeyGenerator.sha1(query.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static String sha1(String text) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] bytes = text.getBytes("utf-8");
+        md.update(bytes, 0, bytes.length);
+        return Sha1CacheKeyGenerator.hex(md.digest());
+    }
+
+    public static String hex(byte[] data) {
+        return CanonicalCacheKeyGenerator.hex(data);
+    }
+}
@@ -0,0 +1,123 @@
+package io.doorbell.core.cache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheEntryTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void decodesWhatItEncodes() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("ETag", "\"abc\"");
+        headers.put("Cache-Control", "max-age=60, stale-while-revalidate=30");
+
+        CacheEntry entry = new CacheEntry("{\"a\": \"\u00e9\"}".getBytes(UTF_8), headers, 1234);
+        CacheEntry decoded = CacheEntry.decode(entry.encode());
+
+        assertEquals("{\"a\": \"\u00e9\"}", decoded.getText());
+        assertEquals(1234, decoded.getStoredAt());
+        assertEquals("\"abc\"", decoded.getETag());
+        assertEquals(60000, decoded.getMaxAge());
+        assertEquals(30000, decoded.getStaleWhileRevalidate());
+        assertEquals(entry.getHeaders(), decoded.getHeaders());
+        assertFalse(decoded.isCompressed());
+    }
+
+    @Test
+    public void decodesAnEmptyBody() throws IOException {
+        CacheEntry decoded = CacheEntry.decode(new CacheEntry(new byte[0], null, 1).encode());
+
+        assertEquals(0, decoded.getBodyLength());
+        assertEquals("", decoded.getText());
+    }
+
+    @Test
+    public void headerValuesStayOnOneLine() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(CacheEntry.ETAG, "a\nb");
+
+        CacheEntry decoded = CacheEntry.decode(new CacheEntry("body".getBytes(UTF_8), headers, 1).encode());
+
+        assertEquals("a b", decoded.getETag());
+        assertEquals("body", decoded.getText());
+    }
+
+    @Test
+    public void dataWithoutAHeaderIsAPlainBody() throws IOException {
+        CacheEntry decoded = CacheEntry.decode("[1, 2, 3]".getBytes(UTF_8));
+
+        assertEquals("[1, 2, 3]", decoded.getText());
+        assertEquals(0, decoded.getStoredAt());
+        assertEquals(Long.MAX_VALUE, decoded.getAge(System.currentTimeMillis()));
+        assertTrue(decoded.getHeaders().isEmpty());
+    }
+
+    @Test
+    public void decodesFromTheBuffersPosition() throws IOException {
+        byte[] encoded = new CacheEntry("body".getBytes(UTF_8), null, 5).encode();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length + 3);
+        buffer.put(new byte[3]).put(encoded).flip();
+        buffer.position(3);
+
+        CacheEntry decoded = CacheEntry.decode(buffer);
+
+        assertEquals("body", decoded.getText());
+        assertEquals(5, decoded.getStoredAt());
+    }
+
+    @Test
+    public void compressedBodyIsInflatedByGetText() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("{\"id\": ").append(i).append("},");
+        }
+
+        CacheEntry entry = CacheEntry.compress(text.toString().getBytes(UTF_8), null, 1);
+        assertTrue(entry.isCompressed());
+        assertTrue(entry.getBodyLength() < text.length());
+
+        CacheEntry decoded = CacheEntry.decode(entry.encode());
+        assertTrue(decoded.isCompressed());
+        assertArrayEquals(entry.getBody(), decoded.getBody());
+        assertEquals(text.toString(), decoded.getText());
+    }
+
+    @Test
+    public void revalidatingKeepsTheBodyAndMergesTheHeaders() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(CacheEntry.ETAG, "\"v1\"");
+        headers.put(CacheEntry.LAST_MODIFIED, "yesterday");
+        CacheEntry entry = CacheEntry.compress("body".getBytes(UTF_8), headers, 1);
+
+        Map<String, String> notModified = new LinkedHashMap<>();
+        notModified.put("ETag", "\"v2\"");
+        CacheEntry revalidated = entry.revalidated(notModified, 100);
+
+        assertEquals("body", revalidated.getText());
+        assertEquals(100, revalidated.getStoredAt());
+        assertEquals("\"v2\"", revalidated.getETag());
+        assertEquals("yesterday", revalidated.getLastModified());
+        assertTrue(revalidated.isCompressed());
+    }
+
+    @Test
+    public void readsCacheControlDirectives() {
+        assertEquals("60", CacheEntry.cacheControl("public, Max-Age=\"60\"", "max-age"));
+        assertEquals("", CacheEntry.cacheControl("no-cache, max-age=60", "no-cache"));
+        assertNull(CacheEntry.cacheControl("max-age=60", "no-store"));
+        assertNull(CacheEntry.cacheControl(null, "max-age"));
+    }
+}
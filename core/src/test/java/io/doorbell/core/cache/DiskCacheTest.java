@@ -0,0 +1,305 @@
+package io.doorbell.core.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private File segment;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("cache").toFile();
+        this.segment = new File(this.directory, "cache.seg");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        cache.put("a", bytes("first"));
+        cache.put("b", bytes("second"));
+        cache.put("a", bytes("third"));
+        cache.remove("b");
+
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertArrayEquals(bytes("third"), cache.get("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(1, cache.getCount());
+        assertEquals(5, cache.getSize());
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        cache.put("a", bytes("first"));
+        long intact = this.segment.length();
+        cache.put("b", bytes("second"));
+
+        // Cut the last record short, as a kill in the middle of writing it would
+        this.truncate(this.segment.length() - 3);
+
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertEquals(intact, this.segment.length());
+        assertArrayEquals(bytes("first"), cache.get("a"));
+        assertFalse(cache.contains("b"));
+
+        // Writes carry on after the last intact record
+        cache.put("c", bytes("third"));
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertArrayEquals(bytes("first"), cache.get("a"));
+        assertArrayEquals(bytes("third"), cache.get("c"));
+    }
+
+    @Test
+    public void garbageAfterTheLastRecordIsDropped() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        cache.put("a", bytes("first"));
+        long intact = this.segment.length();
+
+        try (RandomAccessFile file = new RandomAccessFile(this.segment, "rw")) {
+            file.seek(file.length());
+            file.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+        }
+
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertEquals(intact, this.segment.length());
+        assertArrayEquals(bytes("first"), cache.get("a"));
+    }
+
+    @Test
+    public void entryWithABadChecksumIsDropped() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        cache.put("a", bytes("first"));
+        cache.put("b", bytes("second"));
+
+        // The last byte of b's contents
+        try (RandomAccessFile file = new RandomAccessFile(this.segment, "rw")) {
+            file.seek(file.length() - 1);
+            file.write('X');
+        }
+
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertTrue(cache.contains("b"));
+        assertNull(cache.get("b"));
+        assertFalse(cache.contains("b"));
+        assertArrayEquals(bytes("first"), cache.get("a"));
+
+        // Stays gone
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertFalse(cache.contains("b"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 250);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.get("a");
+        cache.put("c", new byte[100]);
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(200, cache.getSize());
+    }
+
+    @Test
+    public void accessOrderSurvivesReopening() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.put("c", new byte[100]);
+        cache.get("a");
+
+        cache = new DiskCache(this.directory, 200);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void accessOrderSurvivesCompaction() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.put("c", new byte[100]);
+        cache.get("a");
+        cache.compact();
+
+        cache = new DiskCache(this.directory, 200);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void compactionKeepsOnlyTheLiveEntries() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        cache.put("a", bytes("first"));
+        cache.put("b", bytes("second"));
+        cache.put("a", bytes("third"));
+        cache.remove("b");
+        long before = cache.getFileSize();
+
+        cache.compact();
+
+        assertTrue(cache.getFileSize() < before);
+        assertEquals(cache.getFileSize(), this.segment.length());
+        assertArrayEquals(bytes("third"), cache.get("a"));
+        assertFalse(new File(this.directory, "cache.seg.tmp").exists());
+
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertArrayEquals(bytes("third"), cache.get("a"));
+        assertEquals(1, cache.getCount());
+    }
+
+    @Test
+    public void compactsOnceMostOfTheFileIsDead() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        byte[] data = new byte[16 * 1024];
+        for (int i = 0; i < 100; i++) {
+            data[0] = (byte) i;
+            cache.put("a", data);
+        }
+
+        // A single record of a, give or take the dead ones since the last compaction
+        assertTrue("file size " + cache.getFileSize(), cache.getFileSize() < 2 * 512 * 1024);
+        assertEquals(99, cache.get("a")[0]);
+
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertEquals(99, cache.get("a")[0]);
+    }
+
+    @Test
+    public void largeEntriesAreMapped() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        byte[] data = new byte[128 * 1024];
+        Arrays.fill(data, (byte) 7);
+        data[data.length - 1] = 42;
+        cache.put("a", data);
+
+        ByteBuffer buffer = cache.getBuffer("a");
+        assertTrue(buffer.isDirect());
+        assertEquals(data.length, buffer.remaining());
+
+        // Still readable once the file it was mapped from is replaced
+        cache.clear();
+        assertEquals(42, buffer.get(data.length - 1));
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void clearRemovesEverything() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024, listener);
+        cache.put("a", bytes("first"));
+        cache.put("b", bytes("second"));
+
+        cache.clear();
+
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getFileSize());
+        assertTrue(listener.cleared);
+
+        cache.put("c", bytes("third"));
+        cache = new DiskCache(this.directory, 1024 * 1024);
+        assertEquals(1, cache.getCount());
+        assertArrayEquals(bytes("third"), cache.get("c"));
+    }
+
+    @Test
+    public void listenerHearsAboutEntriesOnOpen() throws IOException {
+        DiskCache cache = new DiskCache(this.directory, 1024 * 1024);
+        cache.put("a", bytes("first"), "meta a");
+        cache.put("b", bytes("second"));
+        cache.put("c", bytes("third"), "meta c");
+        cache.remove("c");
+
+        RecordingListener listener = new RecordingListener();
+        new DiskCache(this.directory, 1024 * 1024, listener);
+
+        assertEquals("meta a", listener.entries.get("a"));
+        assertTrue(listener.entries.containsKey("b"));
+        assertNull(listener.entries.get("b"));
+        assertFalse(listener.entries.containsKey("c"));
+    }
+
+    @Test
+    public void listenerHearsAboutEvictions() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        DiskCache cache = new DiskCache(this.directory, 150, listener);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+
+        assertEquals(Arrays.asList("a"), listener.removed);
+        assertFalse(listener.entries.containsKey("a"));
+        assertTrue(listener.entries.containsKey("b"));
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(this.segment, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    private static class RecordingListener implements DiskCache.Listener {
+        final Map<String, String> entries = new HashMap<>();
+        final List<String> removed = new ArrayList<>();
+        boolean cleared = false;
+
+        @Override
+        public void onPut(String key, String metadata) {
+            this.entries.put(key, metadata);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            this.entries.remove(key);
+            this.removed.add(key);
+        }
+
+        @Override
+        public void onClear() {
+            this.entries.clear();
+            this.cleared = true;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package io.doorbell.core.outbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxLogTest {
+
+    // Anything else is unreadable
+    private static final OutboxLog.Parser<String> PARSER = line -> line.startsWith("ok:") ? line.substring(3) : null;
+
+    private File directory;
+    private OutboxLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("outbox").toFile();
+        this.log = new OutboxLog(this.directory);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void readsAppendedLinesInOrder() throws IOException {
+        this.log.append("ok:a");
+        this.log.append("ok:b");
+        this.log.append("ok:c");
+
+        assertEquals(Arrays.asList("a", "b", "c"), this.values(this.log.read(10, PARSER)));
+        assertEquals(Arrays.asList("a", "b"), this.values(this.log.read(2, PARSER)));
+    }
+
+    @Test
+    public void acknowledgedLinesAreNotReadAgain() throws IOException {
+        this.log.append("ok:a");
+        this.log.append("ok:b");
+
+        List<OutboxLog.Record<String>> records = this.log.read(10, PARSER);
+        this.log.acknowledge(records.get(0).end);
+
+        assertEquals(Arrays.asList("b"), this.values(this.log.read(10, PARSER)));
+        assertEquals(records.get(0).end, this.log.readOffset());
+    }
+
+    @Test
+    public void acknowledgingEverythingRemovesTheFiles() throws IOException {
+        this.log.append("ok:a");
+        this.log.append("ok:b");
+
+        List<OutboxLog.Record<String>> records = this.log.read(1, PARSER);
+        this.log.acknowledge(records.get(0).end);
+        records = this.log.read(10, PARSER);
+        this.log.acknowledge(records.get(records.size() - 1).end);
+
+        assertFalse(new File(this.directory, "outbox.log").exists());
+        assertFalse(new File(this.directory, "outbox.offset").exists());
+        assertTrue(this.log.read(10, PARSER).isEmpty());
+    }
+
+    @Test
+    public void lineWithoutNewlineIsNotRead() throws IOException {
+        this.log.append("ok:a");
+        this.write("outbox.log", "ok:b", true);
+
+        assertEquals(Arrays.asList("a"), this.values(this.log.read(10, PARSER)));
+    }
+
+    @Test
+    public void appendAfterTornLineStartsOnANewLine() throws IOException {
+        this.write("outbox.log", "ok:a\nok:to", true);
+        this.log.append("ok:b");
+
+        // The torn line is ended on its own rather than glued to the next one
+        assertEquals(Arrays.asList("a", "to", "b"), this.values(this.log.read(10, PARSER)));
+    }
+
+    @Test
+    public void unreadableLineIsSkippedForGoodWhenNothingIsPendingBeforeIt() throws IOException {
+        this.log.append("garbage");
+        this.log.append("ok:a");
+
+        assertEquals(Arrays.asList("a"), this.values(this.log.read(10, PARSER)));
+        assertEquals("garbage\n".length(), this.log.readOffset());
+    }
+
+    @Test
+    public void unreadableLineAfterPendingEntriesDoesNotMoveTheOffset() throws IOException {
+        this.log.append("ok:a");
+        this.log.append("garbage");
+        this.log.append("ok:b");
+
+        List<OutboxLog.Record<String>> records = this.log.read(10, PARSER);
+        assertEquals(Arrays.asList("a", "b"), this.values(records));
+        assertEquals(0, this.log.readOffset());
+
+        // Read again until it's acknowledged
+        assertEquals(Arrays.asList("a", "b"), this.values(this.log.read(10, PARSER)));
+
+        this.log.acknowledge(records.get(0).end);
+        assertEquals(Arrays.asList("b"), this.values(this.log.read(10, PARSER)));
+    }
+
+    @Test
+    public void unreadableOffsetStartsOver() throws IOException {
+        this.log.append("ok:a");
+        this.log.append("ok:b");
+        this.write("outbox.offset", "not a number", false);
+
+        assertEquals(0, this.log.readOffset());
+        assertEquals(Arrays.asList("a", "b"), this.values(this.log.read(10, PARSER)));
+    }
+
+    private void write(String name, String text, boolean append) throws IOException {
+        try (OutputStream out = new FileOutputStream(new File(this.directory, name), append)) {
+            out.write(text.getBytes(Charset.forName("UTF-8")));
+        }
+    }
+
+    private List<String> values(List<OutboxLog.Record<String>> records) {
+        List<String> values = new ArrayList<>();
+        for (OutboxLog.Record<String> record : records) {
+            values.add(record.value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,112 @@
+package io.doorbell.core.rest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CanonicalCacheKeyGeneratorTest {
+
+    private final CanonicalCacheKeyGenerator generator = new CanonicalCacheKeyGenerator();
+
+    @Test
+    public void sameKeyWhateverTheParameterOrder() throws IOException {
+        Map<String, String> forwards = new LinkedHashMap<>();
+        forwards.put("a", "1");
+        forwards.put("b", "2");
+        forwards.put("c", "3");
+
+        Map<String, String> backwards = new LinkedHashMap<>();
+        backwards.put("c", "3");
+        backwards.put("b", "2");
+        backwards.put("a", "1");
+
+        assertEquals(this.generator.key("/x", forwards), this.generator.key("/x", backwards));
+    }
+
+    @Test
+    public void keyIsTheSha1OfTheLengthPrefixedUtf8() throws IOException, NoSuchAlgorithmException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("sdk", "android");
+        parameters.put("name", "J\u00fcrgen \ud83d\udd14");
+        parameters.put("empty", "");
+        parameters.put("null", null);
+
+        assertEquals(expected("https://doorbell.io/api/applications/1/open", parameters),
+                this.generator.key("https://doorbell.io/api/applications/1/open", parameters));
+    }
+
+    @Test
+    public void longStringsAreHashedWhole() throws IOException, NoSuchAlgorithmException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append(i % 3 == 0 ? '\u20ac' : 'x');
+        }
+        Map<String, String> parameters = Collections.singletonMap("message", value.toString());
+
+        assertEquals(expected("/long", parameters), this.generator.key("/long", parameters));
+    }
+
+    @Test
+    public void noParametersAndEmptyParametersAreTheSame() throws IOException, NoSuchAlgorithmException {
+        assertEquals(expected("/x", null), this.generator.key("/x", null));
+        assertEquals(this.generator.key("/x", null), this.generator.key("/x", Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void namesAndValuesCantRunIntoEachOther() throws IOException {
+        assertNotEquals(this.generator.key("/x", Collections.singletonMap("a", "bc")),
+                this.generator.key("/x", Collections.singletonMap("ab", "c")));
+        assertNotEquals(this.generator.key("/x", Collections.singletonMap("a", "")),
+                this.generator.key("/x", Collections.singletonMap("a", (String) null)));
+        assertNotEquals(this.generator.key("/x", null), this.generator.key("/y", null));
+    }
+
+    @Test
+    public void keysDontDependOnTheOnesBefore() throws IOException {
+        String first = this.generator.key("/x", Collections.singletonMap("a", "1"));
+        this.generator.key("/y", Collections.singletonMap("b", "2"));
+
+        assertEquals(first, this.generator.key("/x", Collections.singletonMap("a", "1")));
+    }
+
+    private static String expected(String endpoint, Map<String, String> parameters) throws IOException, NoSuchAlgorithmException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeString(out, endpoint);
+        if (parameters == null) {
+            out.writeInt(0);
+        } else {
+            Map<String, String> sorted = new TreeMap<>(parameters);
+            out.writeInt(sorted.size());
+            for (Map.Entry<String, String> parameter : sorted.entrySet()) {
+                writeString(out, parameter.getKey());
+                writeString(out, parameter.getValue());
+            }
+        }
+
+        return CanonicalCacheKeyGenerator.hex(MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray()));
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(text.length());
+        out.write(text.getBytes("UTF-8"));
+    }
+}
@@ -19,7 +19,6 @@ import android.text.Html;
 import android.text.InputType;
 import android.text.method.LinkMovementMethod;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
 import android.widget.Button;
@@ -32,7 +31,15 @@ import android.widget.Toast;
 import io.doorbell.android.callbacks.OnErrorCallback;
 import io.doorbell.android.callbacks.OnFeedbackSentCallback;
 import io.doorbell.android.callbacks.OnShowCallback;
+import io.doorbell.android.events.DoorbellEventBatchEndpoint;
+import io.doorbell.android.events.EventBatchEndpoint;
+import io.doorbell.android.events.EventBatcher;
 import io.doorbell.android.manavo.rest.RestCallback;
+import io.doorbell.android.manavo.rest.RestLog;
+import io.doorbell.android.manavo.rest.RestMetricsListener;
+import io.doorbell.android.manavo.rest.RestRequest;
+import io.doorbell.android.outbox.DoorbellOutboxSender;
+import io.doorbell.android.outbox.Outbox;
 import io.doorbell.android.shake.ShakeDetector;
 
 import org.json.JSONException;
@@ -41,9 +48,12 @@ import org.json.JSONObject;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.UUID;
 
 public class Doorbell {
 
+    private static final String TAG = "Doorbell";
+
     private static final String PROPERTY_MODEL = "Model";
     private static final String PROPERTY_ANDROID_VERSION = "Android Version";
     private static final String PROPERTY_WI_FI_ENABLED = "WiFi enabled";
@@ -79,6 +89,11 @@ public class Doorbell {
     private TextView mPoweredByField;
     private Bitmap mScreenshot;
 
+    private String mSubmissionKey;
+
+    // What the key was made for, a change makes it a new submission
+    private String mSubmissionContent;
+
     private Boolean mNPSSelected;
     private int mSeekbarDefaultOffset;
 
@@ -86,6 +101,12 @@ public class Doorbell {
 
     private final DoorbellApi mApi;
 
+    // Only once batching is turned on, until then every event is a request of its own
+    private EventBatcher mEventBatcher = null;
+
+    private final Outbox mOutbox;
+    private final DoorbellOutboxSender mOutboxSender;
+
     private final ShakeDetector shakeDetector;
 
     public Doorbell(Activity activity, long id, String privateKey) {
@@ -94,7 +115,20 @@ public class Doorbell {
 
     public Doorbell(Activity activity, long id, String privateKey, AlertDialog.Builder dialogBuilder) {
         this.mDialogBuilder = dialogBuilder;
-        this.mApi = new DoorbellApi(activity);
+        this.mApi = new DoorbellApi(activity) {
+            @Override
+            public void onStatusCodeError(int code, String data) {
+                if (code >= 400 && code < 500 && code != 408 && code != 429) {
+                    // Rejected, so sending it again, edited or not, is a new submission
+                    Doorbell.this.mSubmissionContent = null;
+                }
+
+                super.onStatusCodeError(code, data);
+            }
+        };
+        this.mOutbox = Outbox.getInstance(activity);
+        this.mOutboxSender = new DoorbellOutboxSender();
+        this.mApi.setOutbox(this.mOutbox);
 
         this.mProperties = new JSONObject();
 
@@ -117,23 +151,39 @@ public class Doorbell {
             this.addProperty(PROPERTY_APP_VERSION_NAME, info.versionName);
             this.addProperty(PROPERTY_APP_VERSION_CODE, info.versionCode);
         } catch (NameNotFoundException e) {
-            e.printStackTrace();
+            RestLog.w(TAG, "Couldn't read the app version", e);
         }
 
         this.buildView();
 
+        this.mOutbox.startDraining(this.mOutboxSender);
+
         this.shakeDetector = new ShakeDetector(new ShakeDetector.Listener() {
             @Override
             public void hearShake() {
                 try {
                     Doorbell.this.show();
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    RestLog.e(TAG, "Couldn't show the dialog", e);
                 }
             }
         });
     }
 
+    /**
+     * @param level one of the android.util.Log levels, or RestLog.NONE to silence the SDK
+     */
+    public static void setLogLevel(int level) {
+        RestLog.setLevel(level);
+    }
+
+    /**
+     * Reports the timings of every request the SDK makes, e.g. to a RestMetricsAggregator.
+     */
+    public static void setMetricsListener(RestMetricsListener listener) {
+        RestRequest.setDefaultMetricsListener(listener);
+    }
+
     public void patchTLSOrPromptUser() {
         this.mApi.patchTLSOrPromptUser();
     }
@@ -310,18 +360,77 @@ public class Doorbell {
         return this;
     }
 
-    public Doorbell impression() {
-        this.mApi.impression();
+    /**
+     * Collects track, open and impression events and sends them together, once the batch is full,
+     * the flush interval is up or the app goes into the background, instead of as they happen.
+     * The Doorbell.io API has no endpoint for a whole batch, so by default each event still goes
+     * to its own endpoint when the batch is sent, see {@link #setEventBatchEndpoint} to send whole
+     * batches to an endpoint that takes them. Off by default.
+     */
+    public Doorbell enableEventBatching() {
+        this.getEventBatcher();
+        return this;
+    }
 
+    /**
+     * Turns on event batching, see {@link #enableEventBatching}.
+     */
+    public Doorbell setEventBatchSize(int size) {
+        this.getEventBatcher().setMaxBatchSize(size);
         return this;
     }
 
-    public Doorbell track(String userID, String eventName, JSONObject attributes) {
+    /**
+     * Turns on event batching, see {@link #enableEventBatching}.
+     */
+    public Doorbell setEventFlushInterval(long milliseconds) {
+        this.getEventBatcher().setFlushInterval(milliseconds);
+        return this;
+    }
+
+    /**
+     * Turns on event batching, with the batches sent to the given endpoint.
+     */
+    public Doorbell setEventBatchEndpoint(EventBatchEndpoint endpoint) {
+        this.getEventBatcher().setEndpoint(endpoint);
+        return this;
+    }
+
+    public Doorbell flushEvents() {
+        if (this.mEventBatcher != null) {
+            this.mEventBatcher.flush();
+        }
+        return this;
+    }
+
+    private EventBatcher getEventBatcher() {
+        if (this.mEventBatcher == null) {
+            this.mEventBatcher = new EventBatcher(this.mActivity, new DoorbellEventBatchEndpoint(this.mActivity, this.mApi));
+        }
+
+        return this.mEventBatcher;
+    }
+
+    private DoorbellApi newEventApi() {
         DoorbellApi newApi = new DoorbellApi(this.mActivity);
         newApi.setAppId(this.mApi.getAppId());
         newApi.setApiKey(this.mApi.getApiKey());
+        newApi.setOutbox(this.mOutbox);
+        return newApi;
+    }
+
+    public Doorbell impression() {
+        if (this.mEventBatcher != null) {
+            this.mEventBatcher.impression();
+        } else {
+            this.mApi.impression();
+        }
 
-        newApi.setCallback(new RestCallback() {
+        return this;
+    }
+
+    public Doorbell track(String userID, String eventName, JSONObject attributes) {
+        RestCallback callback = new RestCallback() {
             @Override
             public void success(Object obj) {
                 try {
@@ -335,12 +444,18 @@ public class Doorbell {
                         }
                     }
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    RestLog.e(TAG, "Couldn't handle the event response", e);
                 }
             }
-        });
+        };
 
-        newApi.track(userID, eventName, attributes);
+        if (this.mEventBatcher != null) {
+            this.mEventBatcher.track(userID, eventName, attributes, callback);
+        } else {
+            DoorbellApi newApi = this.newEventApi();
+            newApi.setCallback(callback);
+            newApi.track(userID, eventName, attributes);
+        }
 
         return this;
     }
@@ -355,11 +470,11 @@ public class Doorbell {
                 // "java.lang.IllegalStateException: Can't compress a recycled bitmap"
                 this.mScreenshot = Bitmap.createBitmap(drawingCache);
             } else {
-                Log.e("Doorbell", "Drawing cache was null");
+                RestLog.w(TAG, "Drawing cache was null");
             }
             v.setDrawingCacheEnabled(false);
         } catch (Exception e) {
-            e.printStackTrace();
+            RestLog.e(TAG, "Couldn't capture a screenshot", e);
         }
 
         return this;
@@ -501,6 +616,10 @@ public class Doorbell {
 
     public Doorbell destroy() {
         this.disableShowOnShake();
+        if (this.mEventBatcher != null) {
+            this.mEventBatcher.destroy();
+        }
+        this.mOutbox.stopDraining(this.mOutboxSender);
 
         return this;
     }
@@ -512,18 +631,39 @@ public class Doorbell {
         return this;
     }
 
+    /**
+     * The same key for as long as Send is tapped again for the same submission, e.g. after a
+     * network error, and a new one once the content changes or the server rejected it.
+     */
+    private String getSubmissionKey() {
+        String content = this.mMessageField.getText() + "\n" + this.mEmailField.getText() + "\n" + this.mName
+                + "\n" + (this.mNPSSelected ? this.mNPSField.getProgress() : -1) + "\n" + this.mProperties
+                + "\n" + System.identityHashCode(this.mScreenshot);
+
+        if (this.mSubmissionKey == null || !content.equals(this.mSubmissionContent)) {
+            this.mSubmissionKey = UUID.randomUUID().toString();
+            this.mSubmissionContent = content;
+        }
+
+        return this.mSubmissionKey;
+    }
+
     public AlertDialog show() {
         return this.show(0);
     }
 
     public AlertDialog show(int eventID) {
-        DoorbellApi newApi = new DoorbellApi(this.mActivity);
-        newApi.setAppId(this.mApi.getAppId());
-        newApi.setApiKey(this.mApi.getApiKey());
-        newApi.open();
+        if (this.mEventBatcher != null) {
+            this.mEventBatcher.open();
+        } else {
+            this.newEventApi().open();
+        }
 
         this.mApi.setEventID(eventID);
 
+        // Every time the dialog is shown it is a new submission
+        this.mSubmissionContent = null;
+
         if (this.mDialog == null) {
             this.mDialog = this.mDialogBuilder.create();
 
@@ -538,6 +678,11 @@ public class Doorbell {
         positiveButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                if (Doorbell.this.mApi.isRequestInFlight()) {
+                    return;
+                }
+
+                Doorbell.this.mApi.setIdempotencyKey(Doorbell.this.getSubmissionKey());
                 Doorbell.this.mApi.setLoadingMessage(Doorbell.this.mActivity.getString(R.string.doorbell_sending));
                 Doorbell.this.mApi.setCallback(new RestCallback() {
                     @Override
@@ -551,7 +696,7 @@ public class Doorbell {
                         } catch (Exception e) {
                             // Sometimes we get exceptions thrown, even from just the Toast message (https://stackoverflow.com/questions/48152659/toast-maketext-giving-error-inflating-class-textview-exception)
                             // so add some protection here
-                            e.printStackTrace();
+                            RestLog.e(TAG, "Couldn't show the confirmation", e);
                         }
 
                         Doorbell.this.mMessageField.setText("");
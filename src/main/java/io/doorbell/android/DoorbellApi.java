@@ -5,6 +5,9 @@ import io.doorbell.android.manavo.rest.RestApi;
 import io.doorbell.android.manavo.rest.RestCache;
 import io.doorbell.android.manavo.rest.RestCallback;
 import io.doorbell.android.manavo.rest.RestErrorCallback;
+import io.doorbell.android.manavo.rest.RestLog;
+import io.doorbell.android.manavo.rest.RestStreamBody;
+import io.doorbell.android.outbox.Outbox;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -12,21 +15,23 @@ import org.json.JSONObject;
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.util.Base64;
-import android.util.Log;
+import android.util.Base64OutputStream;
 import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
 
 
 public class DoorbellApi extends RestApi {
 
-    private static final String DOORBELL_IO_URL = "https://doorbell.io/api/";
-    private static final String DOORBELL_USER_AGENT = "Doorbell Android SDK";
+    public static final String DOORBELL_IO_URL = "https://doorbell.io/api/";
+    public static final String DOORBELL_USER_AGENT = "Doorbell Android SDK";
 
     private String mApiKey;
     private long mAppId;
@@ -37,6 +42,9 @@ public class DoorbellApi extends RestApi {
 
     private OnErrorCallback mOnErrorCallback = null;
 
+    private Outbox mOutbox = null;
+    private String mPath = null;
+
     public DoorbellApi(Activity activity) {
         super(activity);
 
@@ -53,6 +61,15 @@ public class DoorbellApi extends RestApi {
         return this;
     }
 
+    public DoorbellApi setOutbox(Outbox outbox) {
+        this.mOutbox = outbox;
+        return this;
+    }
+
+    public Outbox getOutbox() {
+        return this.mOutbox;
+    }
+
     public void setAppId(long id) {
         this.mAppId = id;
     }
@@ -73,6 +90,14 @@ public class DoorbellApi extends RestApi {
         this.language = language;
     }
 
+    @Override
+    protected Map<String, String> getDefaultParameters() {
+        Map<String, String> parameters = super.getDefaultParameters();
+        parameters.put("sdk", "android");
+        parameters.put("version", this.activity.getString(R.string.doorbell_version));
+        return parameters;
+    }
+
     public void setEventID(int eventID) {
         this.eventID = eventID;
     }
@@ -80,8 +105,7 @@ public class DoorbellApi extends RestApi {
     public void reset() {
         super.reset();
 
-        this.addParameter("sdk", "android");
-        this.addParameter("version", this.activity.getString(R.string.doorbell_version));
+        this.mPath = null;
 
         this.cachePolicy = RestCache.CachePolicy.NETWORK_ONLY;
         this.setNPSRating(-1);
@@ -110,12 +134,12 @@ public class DoorbellApi extends RestApi {
 
     public void impression() {
         this.setLoadingMessage(null);
-        this.post("applications/" + this.mAppId + "/impression?key=" + this.mApiKey);
+        this.submit("applications/" + this.mAppId + "/impression?key=" + this.mApiKey);
     }
 
     public void open() {
         this.setLoadingMessage(null);
-        this.post("applications/" + this.mAppId + "/open?key=" + this.mApiKey);
+        this.submit("applications/" + this.mAppId + "/open?key=" + this.mApiKey);
     }
 
     public void track(String userID, String eventName, JSONObject attributes) {
@@ -127,19 +151,26 @@ public class DoorbellApi extends RestApi {
             this.addParameter("attributes_json", attributes);
         }
 
-        this.post("applications/" + this.mAppId + "/event?key=" + this.mApiKey);
+        this.submit("applications/" + this.mAppId + "/event?key=" + this.mApiKey);
     }
 
     public void sendFeedbackWithScreenshot(String message, String email, JSONObject properties, String name, Bitmap screenshot) {
         try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            screenshot.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-            byte[] byteArray = byteArrayOutputStream.toByteArray();
-            String encoded = Base64.encodeToString(byteArray, Base64.DEFAULT);
+            if (screenshot.isRecycled()) {
+                throw new IllegalStateException("Can't compress a recycled bitmap");
+            }
 
-            this.addParameter("android_screenshot", encoded);
+            // Compress and encode straight into the request body, instead of building the whole image in memory
+            this.addStreamParameter("android_screenshot", new RestStreamBody() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    Base64OutputStream encoded = new Base64OutputStream(out, Base64.DEFAULT);
+                    screenshot.compress(Bitmap.CompressFormat.PNG, 100, encoded);
+                    encoded.close();
+                }
+            });
         } catch (Exception e) {
-            e.printStackTrace();
+            RestLog.w("DoorbellApi", "Couldn't attach the screenshot", e);
 
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
@@ -180,7 +211,34 @@ public class DoorbellApi extends RestApi {
             this.addParameter("event_id", this.eventID);
         }
 
-        this.post("applications/" + this.mAppId + "/submit?key=" + this.mApiKey);
+        if (this.getIdempotencyKey() == null) {
+            this.setIdempotencyKey(UUID.randomUUID().toString());
+        }
+
+        this.submit("applications/" + this.mAppId + "/submit?key=" + this.mApiKey);
+    }
+
+    private void submit(String path) {
+        this.mPath = path;
+
+        if (this.mOutbox != null && !this.mOutbox.isOnline()) {
+            // No point in trying, it goes out once we're back online
+            this.mOutbox.add(path, this.getParameters(), this.getStreamParameters(), this.getIdempotencyKey());
+            this.onSuccess(this.activity.getString(R.string.doorbell_queued));
+            this.reset();
+        } else {
+            this.post(path);
+        }
+    }
+
+    @Override
+    public void onNetworkError(String message) {
+        if (this.mOutbox != null && this.mPath != null) {
+            this.mOutbox.add(this.mPath, this.getParameters(), this.getStreamParameters(), this.getIdempotencyKey());
+            this.onSuccess(this.activity.getString(R.string.doorbell_queued));
+        } else {
+            super.onNetworkError(message);
+        }
     }
 
     private JSONArray jsonTags() {
@@ -0,0 +1,133 @@
+package io.doorbell.android.events;
+
+import android.app.Activity;
+
+import io.doorbell.android.DoorbellApi;
+import io.doorbell.android.callbacks.OnErrorCallback;
+import io.doorbell.android.manavo.rest.RestCallback;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends a batch to the Doorbell.io API, using the app ID and key of the given API.
+ *
+ * The API has no endpoint for a whole batch, so every event goes to the endpoint of its type, as
+ * it would without batching, and the results are handed back together once all of them are in.
+ * The events' timestamps aren't sent, the API records when it receives them.
+ */
+public class DoorbellEventBatchEndpoint implements EventBatchEndpoint {
+
+    private final Activity mActivity;
+    private final DoorbellApi mApi;
+
+    public DoorbellEventBatchEndpoint(Activity activity, DoorbellApi api) {
+        this.mActivity = activity;
+        this.mApi = api;
+    }
+
+    @Override
+    public void send(JSONArray events, final Callback callback) {
+        final Batch batch = new Batch(events.length(), callback);
+
+        for (int i = 0; i < events.length(); i++) {
+            final int index = i;
+            JSONObject event = events.optJSONObject(i);
+            if (event == null) {
+                batch.failed(index, "Not an event");
+                continue;
+            }
+
+            DoorbellApi newApi = new DoorbellApi(this.mActivity);
+            newApi.setAppId(this.mApi.getAppId());
+            newApi.setApiKey(this.mApi.getApiKey());
+            newApi.setOutbox(this.mApi.getOutbox());
+
+            newApi.setOnErrorCallback(new OnErrorCallback() {
+                @Override
+                public void error(String message) {
+                    batch.failed(index, message);
+                }
+
+                @Override
+                public void error(Exception exception) {
+                    batch.failed(index, exception.getMessage());
+                }
+            });
+
+            newApi.setCallback(new RestCallback() {
+                @Override
+                public void success(Object obj) {
+                    batch.succeeded(index, obj);
+                }
+            });
+
+            String type = event.optString("type");
+            if (EventBatcher.TYPE_TRACK.equals(type)) {
+                newApi.track(event.optString("external_user_id"), event.optString("name"), event.optJSONObject("attributes"));
+            } else if (EventBatcher.TYPE_OPEN.equals(type)) {
+                newApi.open();
+            } else if (EventBatcher.TYPE_IMPRESSION.equals(type)) {
+                newApi.impression();
+            } else {
+                batch.failed(index, "Unknown event type " + type);
+            }
+        }
+    }
+
+    /**
+     * Collects the events' results, all of them called back on the main thread.
+     */
+    private static class Batch {
+        private final JSONArray mResults = new JSONArray();
+        private final Callback mCallback;
+
+        private int mPending;
+        private int mFailed = 0;
+        private String mError = null;
+
+        Batch(int size, Callback callback) {
+            this.mCallback = callback;
+            this.mPending = size;
+
+            for (int i = 0; i < size; i++) {
+                this.mResults.put(JSONObject.NULL);
+            }
+
+            if (size == 0) {
+                callback.success(this.mResults);
+            }
+        }
+
+        void succeeded(int index, Object result) {
+            if (result instanceof JSONObject) {
+                try {
+                    this.mResults.put(index, result);
+                } catch (JSONException e) {
+                    // Left out, like a result it had nothing to say about
+                }
+            }
+
+            this.done();
+        }
+
+        void failed(int index, String message) {
+            this.mFailed++;
+            this.mError = message;
+            this.done();
+        }
+
+        private void done() {
+            if (--this.mPending > 0) {
+                return;
+            }
+
+            if (this.mFailed == this.mResults.length()) {
+                this.mCallback.error(this.mError);
+            } else {
+                this.mCallback.success(this.mResults);
+            }
+        }
+    }
+}
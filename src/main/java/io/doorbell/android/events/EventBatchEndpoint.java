@@ -0,0 +1,18 @@
+package io.doorbell.android.events;
+
+import org.json.JSONArray;
+
+public interface EventBatchEndpoint {
+    void send(JSONArray events, Callback callback);
+
+    interface Callback {
+        /**
+         * @param results one entry per sent event, in the same order. Shorter than the batch
+         *                (or empty) when the endpoint has nothing to say about the last events,
+         *                and JSONObject.NULL for the ones before them it has nothing to say about.
+         */
+        void success(JSONArray results);
+
+        void error(String message);
+    }
+}
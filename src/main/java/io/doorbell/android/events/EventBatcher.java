@@ -0,0 +1,231 @@
+package io.doorbell.android.events;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+import io.doorbell.android.manavo.rest.RestCallback;
+import io.doorbell.android.manavo.rest.RestLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Collects track, open and impression events in memory and sends them as a single request.
+ *
+ * A batch is flushed once it reaches the maximum size, once the flush interval has passed since
+ * its first event, or as soon as the app's UI goes into the background.
+ *
+ * Going into the background is heard by a single listener for the whole process, which only
+ * holds the batchers weakly, so a batcher, and the endpoint behind it, is never kept alive by it.
+ */
+public class EventBatcher {
+
+    public static final String TYPE_TRACK = "track";
+    public static final String TYPE_OPEN = "open";
+    public static final String TYPE_IMPRESSION = "impression";
+
+    private static final int DEFAULT_MAX_BATCH_SIZE = 20;
+    private static final long DEFAULT_FLUSH_INTERVAL = 30000; // 30s
+
+    // Every batcher that may still have events queued
+    private static final Set<EventBatcher> BATCHERS = Collections.newSetFromMap(new WeakHashMap<EventBatcher, Boolean>());
+
+    private static ComponentCallbacks2 backgroundCallbacks;
+
+    private final Handler mHandler;
+
+    private EventBatchEndpoint mEndpoint;
+
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private List<JSONObject> mEvents = new ArrayList<>();
+    private List<RestCallback> mCallbacks = new ArrayList<>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            EventBatcher.this.flush();
+        }
+    };
+
+    public EventBatcher(Context context, EventBatchEndpoint endpoint) {
+        this.mHandler = new Handler(Looper.getMainLooper());
+        this.mEndpoint = endpoint;
+
+        EventBatcher.register(context.getApplicationContext(), this);
+    }
+
+    private static synchronized void register(Context applicationContext, EventBatcher batcher) {
+        BATCHERS.add(batcher);
+
+        if (backgroundCallbacks == null) {
+            // Registered once and never removed, it only holds on to the application context
+            backgroundCallbacks = new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                        EventBatcher.flushAll();
+                    }
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+
+                @Override
+                public void onLowMemory() {
+                    EventBatcher.flushAll();
+                }
+            };
+
+            applicationContext.registerComponentCallbacks(backgroundCallbacks);
+        }
+    }
+
+    private static void flushAll() {
+        List<EventBatcher> batchers;
+        synchronized (EventBatcher.class) {
+            batchers = new ArrayList<>(BATCHERS);
+        }
+
+        for (EventBatcher batcher : batchers) {
+            batcher.flush();
+        }
+    }
+
+    public synchronized void setEndpoint(EventBatchEndpoint endpoint) {
+        this.mEndpoint = endpoint;
+    }
+
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize < 1: " + maxBatchSize);
+        }
+
+        this.mMaxBatchSize = maxBatchSize;
+    }
+
+    public synchronized void setFlushInterval(long flushInterval) {
+        this.mFlushInterval = flushInterval;
+    }
+
+    public synchronized int size() {
+        return this.mEvents.size();
+    }
+
+    public void track(String userID, String eventName, JSONObject attributes, RestCallback callback) {
+        JSONObject event = this.event(TYPE_TRACK);
+
+        try {
+            event.put("external_user_id", userID);
+            event.put("name", eventName);
+            if (attributes != null) {
+                event.put("attributes", attributes);
+            }
+        } catch (JSONException e) {
+            RestLog.w("Doorbell", "Couldn't build the event", e);
+        }
+
+        this.add(event, callback);
+    }
+
+    public void open() {
+        this.add(this.event(TYPE_OPEN), null);
+    }
+
+    public void impression() {
+        this.add(this.event(TYPE_IMPRESSION), null);
+    }
+
+    private JSONObject event(String type) {
+        JSONObject event = new JSONObject();
+
+        try {
+            event.put("type", type);
+            event.put("timestamp", System.currentTimeMillis());
+        } catch (JSONException e) {
+            RestLog.w("Doorbell", "Couldn't build the event", e);
+        }
+
+        return event;
+    }
+
+    private void add(JSONObject event, RestCallback callback) {
+        boolean full;
+
+        synchronized (this) {
+            this.mEvents.add(event);
+            this.mCallbacks.add(callback);
+
+            full = this.mEvents.size() >= this.mMaxBatchSize;
+
+            if (!full && this.mEvents.size() == 1) {
+                this.mHandler.postDelayed(this.mFlushRunnable, this.mFlushInterval);
+            }
+        }
+
+        if (full) {
+            this.flush();
+        }
+    }
+
+    public void flush() {
+        final List<RestCallback> callbacks;
+        final JSONArray batch;
+        final EventBatchEndpoint endpoint;
+
+        synchronized (this) {
+            this.mHandler.removeCallbacks(this.mFlushRunnable);
+
+            if (this.mEvents.isEmpty()) {
+                return;
+            }
+
+            batch = new JSONArray(this.mEvents);
+            callbacks = this.mCallbacks;
+            endpoint = this.mEndpoint;
+
+            this.mEvents = new ArrayList<>();
+            this.mCallbacks = new ArrayList<>();
+        }
+
+        endpoint.send(batch, new EventBatchEndpoint.Callback() {
+            @Override
+            public void success(JSONArray results) {
+                for (int i = 0; i < callbacks.size() && i < results.length(); i++) {
+                    RestCallback callback = callbacks.get(i);
+                    if (callback != null && !results.isNull(i)) {
+                        callback.success(results.opt(i));
+                    }
+                }
+            }
+
+            @Override
+            public void error(String message) {
+                RestLog.e("Doorbell", "Sending " + callbacks.size() + " events failed: " + message);
+            }
+        });
+    }
+
+    /**
+     * Sends whatever is still queued and stops listening for the app going into the background.
+     */
+    public void destroy() {
+        this.flush();
+
+        synchronized (EventBatcher.class) {
+            BATCHERS.remove(this);
+        }
+    }
+}
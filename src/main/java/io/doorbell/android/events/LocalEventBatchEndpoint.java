@@ -0,0 +1,78 @@
+package io.doorbell.android.events;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for an endpoint that takes whole batches. It keeps every batch it receives
+ * and answers with the results registered for each event name, so batching can be exercised
+ * without a server.
+ */
+public class LocalEventBatchEndpoint implements EventBatchEndpoint {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final List<JSONArray> mBatches = new ArrayList<>();
+    private final Map<String, JSONObject> mResults = new HashMap<>();
+
+    private String mError = null;
+
+    public synchronized LocalEventBatchEndpoint respondTo(String eventName, JSONObject result) {
+        this.mResults.put(eventName, result);
+        return this;
+    }
+
+    public synchronized LocalEventBatchEndpoint failWith(String error) {
+        this.mError = error;
+        return this;
+    }
+
+    public synchronized List<JSONArray> getBatches() {
+        return new ArrayList<>(this.mBatches);
+    }
+
+    public synchronized int getEventCount() {
+        int count = 0;
+        for (JSONArray batch : this.mBatches) {
+            count += batch.length();
+        }
+        return count;
+    }
+
+    @Override
+    public void send(JSONArray events, final Callback callback) {
+        final JSONArray results = new JSONArray();
+        final String error;
+
+        synchronized (this) {
+            this.mBatches.add(events);
+            error = this.mError;
+
+            for (int i = 0; i < events.length(); i++) {
+                JSONObject event = events.optJSONObject(i);
+                JSONObject result = event != null ? this.mResults.get(event.optString("name")) : null;
+                results.put(result != null ? result : new JSONObject());
+            }
+        }
+
+        // Answer asynchronously, like the network endpoint does
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    callback.error(error);
+                } else {
+                    callback.success(results);
+                }
+            }
+        });
+    }
+}
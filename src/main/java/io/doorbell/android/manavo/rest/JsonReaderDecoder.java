@@ -0,0 +1,24 @@
+package io.doorbell.android.manavo.rest;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Base for decoders that read the response into their own types with a {@link JsonReader}.
+ */
+public abstract class JsonReaderDecoder<T> implements RestResponseDecoder {
+
+    @Override
+    public Object decode(InputStream in, String charset) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, charset));
+        reader.setLenient(true);
+
+        // The stream belongs to RestRequest, so the reader isn't closed here
+        return this.read(reader);
+    }
+
+    protected abstract T read(JsonReader reader) throws IOException;
+}
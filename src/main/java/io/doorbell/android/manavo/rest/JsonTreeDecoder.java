@@ -0,0 +1,117 @@
+package io.doorbell.android.manavo.rest;
+
+import android.util.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+/**
+ * Builds the same JSONObject/JSONArray trees RestApi hands to its callbacks, but token by token
+ * from the stream. Bodies that aren't a JSON object or array come back as a String, like they do
+ * without a decoder.
+ */
+public class JsonTreeDecoder extends JsonReaderDecoder<Object> {
+
+    @Override
+    public Object decode(InputStream in, String charset) throws IOException {
+        PushbackReader reader = new PushbackReader(new InputStreamReader(in, charset), 1);
+
+        int c;
+        do {
+            c = reader.read();
+        } while (c != -1 && Character.isWhitespace(c));
+
+        if (c == -1) {
+            return "";
+        }
+
+        reader.unread(c);
+
+        if (c != '{' && c != '[') {
+            return JsonTreeDecoder.readString(reader);
+        }
+
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+
+        return this.read(jsonReader);
+    }
+
+    @Override
+    protected Object read(JsonReader reader) throws IOException {
+        try {
+            return this.readValue(reader);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    object.put(name, this.readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(this.readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return JsonTreeDecoder.toNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new IOException("Unexpected " + reader.peek());
+        }
+    }
+
+    /**
+     * Same number types as org.json would give, so comparisons against parsed trees keep working.
+     */
+    private static Number toNumber(String value) {
+        if (value.indexOf('.') == -1 && value.indexOf('e') == -1 && value.indexOf('E') == -1) {
+            try {
+                long l = Long.parseLong(value);
+                if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                    return (int) l;
+                }
+                return l;
+            } catch (NumberFormatException e) {
+                // too big for a long
+            }
+        }
+
+        return Double.valueOf(value);
+    }
+
+    private static String readString(Reader reader) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, read);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package io.doorbell.android.manavo.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory transport that answers with canned responses after a configurable latency, without
+ * touching the network. Handy for repeatable benchmarks of the whole request pipeline.
+ *
+ * Responses are matched on the method and the start of the URL, the most recently added match
+ * wins. Anything without a match gets a 404.
+ */
+public class LoopbackTransport implements RestTransport {
+
+    private final List<Response> responses = new ArrayList<>();
+
+    private long latency = 0;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    public static class Response {
+        final String method;
+        final String urlPrefix;
+        final int statusCode;
+        final byte[] body;
+        final Map<String, String> headers = new HashMap<>();
+        long latency = -1;
+
+        Response(String method, String urlPrefix, int statusCode, byte[] body) {
+            this.method = method;
+            this.urlPrefix = urlPrefix;
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public Response header(String name, String value) {
+            this.headers.put(name.toLowerCase(), value);
+            return this;
+        }
+
+        /**
+         * Overrides the transport's latency for this response only.
+         */
+        public Response latency(long milliseconds) {
+            this.latency = milliseconds;
+            return this;
+        }
+    }
+
+    public synchronized Response respond(String method, String urlPrefix, int statusCode, String body) {
+        try {
+            return this.respond(method, urlPrefix, statusCode, body.getBytes("utf-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized Response respond(String method, String urlPrefix, int statusCode, byte[] body) {
+        Response response = new Response(method, urlPrefix, statusCode, body);
+        this.responses.add(0, response);
+        return response;
+    }
+
+    public synchronized void setLatency(long milliseconds) {
+        this.latency = milliseconds;
+    }
+
+    public int getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Total size of the request bodies sent through this transport.
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived.get();
+    }
+
+    @Override
+    public Exchange open(String method, URL url) throws IOException {
+        this.requestCount.incrementAndGet();
+
+        String target = url.toString();
+        synchronized (this) {
+            for (Response response : this.responses) {
+                if (response.method.equalsIgnoreCase(method) && target.startsWith(response.urlPrefix)) {
+                    return new LoopbackExchange(response, response.latency >= 0 ? response.latency : this.latency);
+                }
+            }
+
+            return new LoopbackExchange(new Response(method, target, 404, new byte[0]), this.latency);
+        }
+    }
+
+    private class LoopbackExchange implements Exchange {
+        private final Response response;
+        private final long latency;
+
+        private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+
+        private boolean responded = false;
+        private boolean disconnected = false;
+
+        LoopbackExchange(Response response, long latency) {
+            this.response = response;
+            this.latency = latency;
+        }
+
+        @Override
+        public void setRequestProperty(String name, String value) {
+        }
+
+        @Override
+        public void addRequestProperty(String name, String value) {
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunkLength) {
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(int contentLength) {
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return this.requestBody;
+        }
+
+        @Override
+        public synchronized int getResponseCode() throws IOException {
+            if (!this.responded) {
+                LoopbackTransport.this.bytesReceived.addAndGet(this.requestBody.size());
+
+                long until = System.currentTimeMillis() + this.latency;
+                long remaining;
+                while (!this.disconnected && (remaining = until - System.currentTimeMillis()) > 0) {
+                    try {
+                        this.wait(remaining);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                }
+
+                this.responded = true;
+            }
+
+            if (this.disconnected) {
+                throw new IOException("Canceled");
+            }
+
+            return this.response.statusCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return this.response.headers.get(name.toLowerCase());
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (this.getResponseCode() >= 400) {
+                throw new IOException("HTTP " + this.response.statusCode);
+            }
+
+            return new ByteArrayInputStream(this.response.body);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return this.response.statusCode >= 400 ? new ByteArrayInputStream(this.response.body) : null;
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            this.disconnected = true;
+            this.notifyAll();
+        }
+    }
+}
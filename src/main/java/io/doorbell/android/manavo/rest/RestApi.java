@@ -9,7 +9,6 @@ import android.database.MatrixCursor;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 import android.widget.Toast;
 
 import com.google.android.gms.common.GoogleApiAvailability;
@@ -17,19 +16,26 @@ import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
 import com.google.android.gms.common.GooglePlayServicesRepairableException;
 import com.google.android.gms.security.ProviderInstaller;
 
+import io.doorbell.core.cache.CacheEntry;
+import io.doorbell.core.cache.CacheIndex;
+import io.doorbell.core.rest.JsonFilter;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 
 public class RestApi {
 
+    private static final String TAG = "RestApi";
+
     protected Activity activity;
     protected RestRequest rest;
     protected RestCallback callback;
@@ -40,13 +46,23 @@ public class RestApi {
     protected String loadingMessage;
     protected ProgressDialog progressDialog;
     private Map<String, String> parameters;
+    private Map<String, RestStreamBody> streamParameters;
 
     protected int cachePolicy = RestCache.CachePolicy.IGNORE_CACHE;
+    private long cacheMaxAge = -1;
+    private long cacheStaleWhileRevalidate = -1;
+    List<String> cacheTags;
+    private List<String> invalidatedCacheTags;
 
     public String endpoint = null;
 
     private String requestType = null;
 
+    private String idempotencyKey = null;
+    private boolean requestInFlight = false;
+    private boolean refreshing = false;
+    private PendingLookup pendingLookup = null;
+
     public RestApi(Activity activity) {
 
         this.activity = activity;
@@ -56,68 +72,28 @@ public class RestApi {
         this.rest = new RestRequest();
 
         Handler.Callback handleMessage = (Message msg) -> {
+            RestApi.this.requestInFlight = false;
+
             Bundle b = msg.getData();
 
-            if (b.containsKey("data")) {
-                String data = b.getString("data");
-
-                try {
-                    if (data == null) {
-                        RestApi.this.onSuccess(null);
-                    } else if (data.trim().substring(0, 1).equalsIgnoreCase("{")) {
-                        Object returnObject = new JSONObject(data);
-
-                        // we want to save the cache
-                        if (RestApi.this.requestType.equalsIgnoreCase("get") && RestApi.this.cachePolicy != RestCache.CachePolicy.IGNORE_CACHE) {
-                            try {
-                                RestCache.save(RestApi.this, data.trim());
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        if (RestApi.this.cachePolicy != RestCache.CachePolicy.UPDATE_CACHE) {
-                            RestApi.this.onSuccess(returnObject);
-                        }
-                    } else if (data.trim().substring(0, 1).equalsIgnoreCase("[")) {
-                        Object returnObject = new JSONArray(data);
-
-                        // we want to save the cache
-                        if (RestApi.this.requestType.equalsIgnoreCase("get") && RestApi.this.cachePolicy != RestCache.CachePolicy.IGNORE_CACHE) {
-                            try {
-                                RestCache.save(RestApi.this, data.trim());
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        if (RestApi.this.cachePolicy != RestCache.CachePolicy.UPDATE_CACHE) {
-                            RestApi.this.onSuccess(returnObject);
-                        }
-                    } else {
-                        // incorrect format
-                        Log.d("RestApi", data);
-                        //RestApi.this.onError("Unknown format of data");
-                        // we want to save the cache
-                        if (RestApi.this.requestType.equalsIgnoreCase("get") && RestApi.this.cachePolicy != RestCache.CachePolicy.IGNORE_CACHE) {
-                            try {
-                                RestCache.save(RestApi.this, data.trim());
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        if (RestApi.this.cachePolicy != RestCache.CachePolicy.UPDATE_CACHE) {
-                            RestApi.this.onSuccess(data);
-                        }
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
+            if (RestApi.this.refreshing) {
+                // The stale response was already delivered, this only brought the cache up to date
+                RestApi.this.refreshing = false;
+                if (!b.containsKey("data") || msg.obj instanceof Exception) {
+                    RestLog.d(TAG, "Couldn't refresh the cached response");
+                }
+                return true;
+            }
 
-                    RestApi.this.onError(e);
+            if (b.containsKey("data")) {
+                // Parsed (and cached) on the worker thread, see parseResponse
+                if (msg.obj instanceof Exception) {
+                    RestApi.this.onError((Exception) msg.obj);
+                } else if (msg.obj == null || RestApi.this.cachePolicy != RestCache.CachePolicy.UPDATE_CACHE) {
+                    RestApi.this.onSuccess(msg.obj);
                 }
             } else if (b.containsKey("error")) {
-                RestApi.this.onError(b.getString("error"));
+                RestApi.this.onNetworkError(b.getString("error"));
             } else if (b.containsKey("statusCodeError") && b.containsKey("statusCodeErrorNumber")) {
                 RestApi.this.onStatusCodeError(b.getInt("statusCodeErrorNumber"), b.getString("statusCodeError"));
             } else {
@@ -133,6 +109,85 @@ public class RestApi {
         this.rest.setHandler(new Handler(handleMessage));
     }
 
+    /**
+     * Runs on the worker thread that read the response, so only the parsed result reaches the
+     * main thread. Only uses what it's given, since the main thread may be preparing the next
+     * request in the meantime.
+     */
+    private Object parseResponse(Object body, int statusCode, Map<String, String> headers, byte[] gzipped, String cacheHash, String cacheMetadata, List<String> invalidatedCacheTags) throws JSONException, IOException {
+        if (!invalidatedCacheTags.isEmpty()) {
+            // Before the response is delivered, so a get made from the callback doesn't see them
+            RestCache.invalidate(this.activity, invalidatedCacheTags, null);
+        }
+
+        if (statusCode == 304 && cacheHash != null) {
+            RestCache.Cached cached = RestCache.revalidate(this.activity, cacheHash, cacheMetadata, headers);
+            if (cached == null) {
+                throw new IOException("Not modified, but the cached response is gone");
+            }
+
+            return cached.data;
+        }
+
+        if (!(body instanceof String)) {
+            // Already decoded from the stream
+            if (cacheHash != null && (body instanceof JSONObject || body instanceof JSONArray)) {
+                RestCache.save(this.activity, cacheHash, cacheMetadata, body.toString(), body, headers, gzipped);
+            }
+
+            return body;
+        }
+
+        String data = (String) body;
+        String trimmed = data.trim();
+
+        Object returnObject;
+        if (trimmed.startsWith("{")) {
+            returnObject = new JSONObject(trimmed);
+        } else if (trimmed.startsWith("[")) {
+            returnObject = new JSONArray(trimmed);
+        } else {
+            // incorrect format
+            RestLog.d(TAG, () -> "Unexpected response format: " + RestLog.payload(data));
+            returnObject = data;
+        }
+
+        // we want to save the cache
+        if (cacheHash != null) {
+            RestCache.save(this.activity, cacheHash, cacheMetadata, trimmed, returnObject, headers, gzipped);
+        }
+
+        return returnObject;
+    }
+
+    /**
+     * @param cacheMetadata what the cached response is indexed under, see {@link CacheIndex#metadata}
+     * @param invalidatedCacheTags the tags whose cached responses go away once the request succeeds
+     */
+    RestRequest.ResponseProcessor responseProcessor(final String cacheHash, final String cacheMetadata, List<String> invalidatedCacheTags) {
+        final List<String> invalidated = new ArrayList<>(invalidatedCacheTags);
+        return (data, statusCode, headers, gzipped) -> RestApi.this.parseResponse(data, statusCode, headers, gzipped, cacheHash, cacheMetadata, invalidated);
+    }
+
+    /**
+     * Asks the server to answer 304 Not Modified, with no body, if the cached response is still
+     * current.
+     */
+    private static Map<String, String> conditionalHeaders(CacheEntry entry) {
+        if (!entry.hasValidators()) {
+            return null;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        if (entry.getETag() != null) {
+            headers.put("If-None-Match", entry.getETag());
+        }
+        if (entry.getLastModified() != null) {
+            headers.put("If-Modified-Since", entry.getLastModified());
+        }
+        return headers;
+    }
+
     public boolean isFullySupported() {
         try {
             ProviderInstaller.installIfNeeded(this.activity);
@@ -143,7 +198,7 @@ public class RestApi {
     }
 
     public void patchTLSOrPromptUser() {
-        Log.e("RestApi", "Trying to patch TLS");
+        RestLog.i(TAG, "Trying to patch TLS");
 
         try {
             ProviderInstaller.installIfNeeded(this.activity);
@@ -151,37 +206,134 @@ public class RestApi {
             // Indicates that Google Play services is out of date, disabled, etc.
             // Prompt the user to install/update/enable Google Play services.
             GoogleApiAvailability.getInstance().showErrorNotification(this.activity, e.getConnectionStatusCode());
-            Log.e("RestApi", "Exception patching TLS");
-            e.printStackTrace();
+            RestLog.e(TAG, "Exception patching TLS", e);
         } catch (GooglePlayServicesNotAvailableException e) {
             // Indicates a non-recoverable error; the ProviderInstaller is not able
             // to install an up-to-date Provider.
-            Log.e("RestApi", "Exception patching TLS");
-            e.printStackTrace();
+            RestLog.e(TAG, "Exception patching TLS", e);
         }
 
         // If this is reached, you know that the provider was already up-to-date,
         // or was successfully updated.
     }
 
+    public void setTransport(RestTransport transport) {
+        this.rest.setTransport(transport);
+    }
+
+    public void setMetricsListener(RestMetricsListener listener) {
+        this.rest.setMetricsListener(listener);
+    }
+
+    /**
+     * Decodes responses straight from the network stream instead of reading them into a String
+     * first, e.g. with a {@link JsonTreeDecoder} for large lists.
+     */
+    public void setResponseDecoder(RestResponseDecoder responseDecoder) {
+        this.rest.setResponseDecoder(responseDecoder);
+    }
+
+    public void setRetryPolicy(RestRetryPolicy retryPolicy) {
+        this.rest.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * Identifies one logical submission. Requests sent with the same key, whether they are retries
+     * or repeated taps, are recognised by the server as the same one.
+     */
+    public void setIdempotencyKey(String key) {
+        this.idempotencyKey = key;
+    }
+
+    public String getIdempotencyKey() {
+        return this.idempotencyKey;
+    }
+
+    public boolean isRequestInFlight() {
+        return this.requestInFlight;
+    }
+
     public void setCachePolicy(int cachePolicy) {
         this.cachePolicy = cachePolicy;
     }
 
+    /**
+     * How long a cached response is fresh for, for CACHE_ELSE_NETWORK and STALE_WHILE_REVALIDATE.
+     * By default the server's Cache-Control max-age, or forever for CACHE_ELSE_NETWORK when there
+     * isn't one.
+     */
+    public void setCacheMaxAge(long millis) {
+        this.cacheMaxAge = millis;
+    }
+
+    /**
+     * How long past its max age a cached response is still served while it's being refreshed,
+     * for STALE_WHILE_REVALIDATE. By default the server's Cache-Control stale-while-revalidate,
+     * or forever when there isn't one.
+     */
+    public void setCacheStaleWhileRevalidate(long millis) {
+        this.cacheStaleWhileRevalidate = millis;
+    }
+
+    /**
+     * Tags the response of the next get in the cache, so it can be removed along with every other
+     * response with the tag, see {@link #addInvalidatedCacheTag} and {@link RestCache#invalidateTag}.
+     */
+    public void addCacheTag(String tag) {
+        this.cacheTags.add(tag);
+    }
+
+    /**
+     * Once the next post, put or delete succeeds, removes the cached responses tagged with this,
+     * e.g. the lists it just changed.
+     */
+    public void addInvalidatedCacheTag(String tag) {
+        this.invalidatedCacheTags.add(tag);
+    }
+
+    /**
+     * Removes the cached responses of the gets of every url starting with the prefix, which is
+     * resolved like the url passed to {@link #get}, but without the suffix.
+     */
+    public void invalidateCachedUrls(String urlPrefix) {
+        RestCache.invalidateEndpointPrefix(this.activity, BASE_URL + urlPrefix);
+    }
+
     public void reset() {
         this.loadingMessage = "Loading...";
         this.callback = null;
         this.errorCallback = null;
         this.endpoint = null;
+        this.idempotencyKey = null;
         this.cachePolicy = RestCache.CachePolicy.IGNORE_CACHE;
+        this.cacheMaxAge = -1;
+        this.cacheStaleWhileRevalidate = -1;
+        this.cacheTags = new ArrayList<>();
+        this.invalidatedCacheTags = new ArrayList<>();
+
+        this.parameters = this.getDefaultParameters();
+        this.streamParameters = new HashMap<>();
+    }
 
-        this.parameters = new HashMap<>();
+    /**
+     * @return a new map of the parameters every request starts out with, after a {@link #reset}
+     */
+    protected Map<String, String> getDefaultParameters() {
+        return new HashMap<>();
     }
 
     public void addParameter(String name, Object value) {
         this.parameters.put(name, value.toString());
     }
 
+    /**
+     * Adds a parameter whose value is written straight into the request body when it is sent,
+     * turning a post/put into a streamed multipart upload.
+     */
+    public void addStreamParameter(String name, RestStreamBody body) {
+        this.streamParameters.put(name, body);
+    }
+
     public void setLoadingMessage(String message) {
         this.loadingMessage = message;
     }
@@ -194,6 +346,10 @@ public class RestApi {
         return this.parameters;
     }
 
+    public Map<String, RestStreamBody> getStreamParameters() {
+        return this.streamParameters;
+    }
+
     public void showLoadingDialog() {
         if (this.loadingMessage != null) {
             this.progressDialog = new ProgressDialog(this.activity);
@@ -213,6 +369,12 @@ public class RestApi {
     }
 
     public void cancelRequest() {
+        this.requestInFlight = false;
+        this.refreshing = false;
+        if (this.pendingLookup != null) {
+            this.pendingLookup.canceled = true;
+            this.pendingLookup = null;
+        }
         this.rest.cancelRequest();
         this.hideLoadingDialog();
     }
@@ -285,6 +447,13 @@ public class RestApi {
         }
     }
 
+    /**
+     * Called when the request never got a response, e.g. because there is no connectivity.
+     */
+    public void onNetworkError(String message) {
+        this.onError(message);
+    }
+
     public void onError(String message) {
         if (this.errorCallback != null) {
             this.errorCallback.error(message);
@@ -301,93 +470,231 @@ public class RestApi {
         }
     }
 
-    protected void get(String url) {
-        boolean gotCache = false;
+    /**
+     * Answers from memory right away when it can. Otherwise the cache is read on the cache thread,
+     * and the cached response, if any, is delivered on the main thread before the network request
+     * is made.
+     *
+     * @return the call, or null when the cache already answered it
+     */
+    protected RestCall get(String url) {
+        this.stopRefreshing();
 
         this.requestType = "get";
 
         this.endpoint = this.getEndpoint(url);
 
-        if (this.cachePolicy == RestCache.CachePolicy.CACHE_THEN_NETWORK || this.cachePolicy == RestCache.CachePolicy.CACHE_ELSE_NETWORK) {
+        String cacheHash = null;
+        if (this.cachePolicy != RestCache.CachePolicy.IGNORE_CACHE) {
             try {
-                if (RestCache.exists(this)) {
-                    String data = RestCache.get(this);
-                    try {
-                        if (data.trim().substring(0, 1).equalsIgnoreCase("{")) {
-                            Object returnObject = new JSONObject(data);
-                            gotCache = true;
-                            RestApi.this.onSuccess(returnObject);
-                        } else if (data.trim().substring(0, 1).equalsIgnoreCase("[")) {
-                            Object returnObject = new JSONArray(data);
-                            gotCache = true;
-                            RestApi.this.onSuccess(returnObject);
-                        }
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                }
+                cacheHash = RestCache.getRequestHash(this);
             } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
+                RestLog.e(TAG, "Couldn't compute the cache key", e);
+            }
+        }
+
+        if (cacheHash == null || this.cachePolicy == RestCache.CachePolicy.NETWORK_ONLY) {
+            return this.get(cacheHash, null);
+        }
+
+        RestCache.Cached cached = RestCache.peek(cacheHash);
+        if (cached != null) {
+            return this.get(cacheHash, cached);
+        }
+
+        final String hash = cacheHash;
+        final PendingLookup lookup = new PendingLookup();
+        this.pendingLookup = lookup;
+        this.requestInFlight = true;
+
+        RestCache.lookup(this.activity, hash, result -> {
+            if (lookup.canceled) {
+                return;
             }
+
+            RestApi.this.pendingLookup = null;
+            RestApi.this.requestInFlight = false;
+            lookup.call = RestApi.this.get(hash, result);
+        });
+
+        return lookup;
+    }
+
+    private RestCall get(String cacheHash, RestCache.Cached cached) {
+        boolean gotCache = false;
+
+        boolean fresh = false;
+        boolean usable = false;
+        if (cached != null) {
+            long age = cached.entry.getAge(System.currentTimeMillis());
+            long maxAge = this.getCacheMaxAge(cached.entry);
+            fresh = age <= maxAge;
+            usable = fresh || age - maxAge <= this.getCacheStaleWhileRevalidate(cached.entry);
+        }
+
+        if (cached != null && (this.cachePolicy == RestCache.CachePolicy.CACHE_THEN_NETWORK
+                || (this.cachePolicy == RestCache.CachePolicy.CACHE_ELSE_NETWORK && fresh)
+                || (this.cachePolicy == RestCache.CachePolicy.STALE_WHILE_REVALIDATE && usable))) {
+            gotCache = true;
+            this.onSuccess(cached.data);
         }
 
-        if (this.cachePolicy == RestCache.CachePolicy.CACHE_ELSE_NETWORK && gotCache) {
+        boolean refresh = gotCache && this.cachePolicy == RestCache.CachePolicy.STALE_WHILE_REVALIDATE;
+
+        if ((this.cachePolicy == RestCache.CachePolicy.CACHE_ELSE_NETWORK || this.cachePolicy == RestCache.CachePolicy.STALE_WHILE_REVALIDATE) && gotCache && fresh) {
             // no need to load anything, we got if from the cache, so all done
         } else {
             if (!gotCache && this.cachePolicy != RestCache.CachePolicy.UPDATE_CACHE) {
                 this.showLoadingDialog();
-            } else {
+            } else if (!refresh) {
                 // show loading progress bar in the titlebar
                 this.setProgressBarIndeterminateVisibility(true);
             }
 
             this.rest.setData(this.parameters);
+            this.rest.setIdempotencyKey(this.idempotencyKey);
+            this.rest.setHeaders(cached != null ? RestApi.conditionalHeaders(cached.entry) : null);
+            this.rest.setKeepGzippedBody(cacheHash != null);
+            this.rest.setResponseProcessor(this.responseProcessor(cacheHash, CacheIndex.metadata(this.endpoint, this.cacheTags), this.invalidatedCacheTags));
+
+            this.requestInFlight = !refresh;
+            this.refreshing = refresh;
             try {
-                this.rest.get(this.endpoint);
+                return this.rest.get(this.endpoint);
             } catch (IOException e) {
+                this.requestInFlight = false;
+                this.refreshing = false;
                 this.onStatusCodeError(e);
             }
         }
+
+        return null;
     }
 
-    protected void post(String url) {
+    private long getCacheMaxAge(CacheEntry entry) {
+        if (this.cacheMaxAge >= 0) {
+            return this.cacheMaxAge;
+        } else if (entry.getMaxAge() >= 0) {
+            return entry.getMaxAge();
+        }
+
+        return this.cachePolicy == RestCache.CachePolicy.CACHE_ELSE_NETWORK ? Long.MAX_VALUE : 0;
+    }
+
+    private long getCacheStaleWhileRevalidate(CacheEntry entry) {
+        if (this.cacheStaleWhileRevalidate >= 0) {
+            return this.cacheStaleWhileRevalidate;
+        } else if (entry.getStaleWhileRevalidate() >= 0) {
+            return entry.getStaleWhileRevalidate();
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * A new request takes over from a background refresh, so its response isn't mistaken for
+     * the refresh's, and from a cache lookup that hasn't finished.
+     */
+    private void stopRefreshing() {
+        if (this.refreshing) {
+            this.refreshing = false;
+            this.rest.cancelRequest();
+        }
+
+        if (this.pendingLookup != null) {
+            this.pendingLookup.canceled = true;
+            this.pendingLookup = null;
+        }
+    }
+
+    /**
+     * A get waiting for the cache thread, which becomes the network call once it's done.
+     */
+    private static class PendingLookup implements RestCall {
+        volatile boolean canceled = false;
+        volatile RestCall call;
+
+        @Override
+        public void cancel() {
+            this.canceled = true;
+            if (this.call != null) {
+                this.call.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return this.canceled || (this.call != null && this.call.isCanceled());
+        }
+    }
+
+    protected RestCall post(String url) {
+        this.stopRefreshing();
+
         this.requestType = "post";
 
         this.endpoint = this.getEndpoint(url);
 
         this.showLoadingDialog();
         this.rest.setData(this.parameters);
+        this.rest.setStreamData(this.streamParameters);
+        this.rest.setIdempotencyKey(this.idempotencyKey);
+        this.rest.setHeaders(null);
+        this.rest.setKeepGzippedBody(false);
+        this.rest.setResponseProcessor(this.responseProcessor(null, null, this.invalidatedCacheTags));
+        this.requestInFlight = true;
         try {
-            this.rest.post(this.endpoint);
+            return this.rest.post(this.endpoint);
         } catch (IOException e) {
+            this.requestInFlight = false;
             this.onStatusCodeError(e);
+            return null;
         }
     }
 
-    protected void put(String url) {
+    protected RestCall put(String url) {
+        this.stopRefreshing();
+
         this.requestType = "put";
 
         this.endpoint = this.getEndpoint(url);
 
         this.showLoadingDialog();
         this.rest.setData(this.parameters);
+        this.rest.setStreamData(this.streamParameters);
+        this.rest.setIdempotencyKey(this.idempotencyKey);
+        this.rest.setHeaders(null);
+        this.rest.setKeepGzippedBody(false);
+        this.rest.setResponseProcessor(this.responseProcessor(null, null, this.invalidatedCacheTags));
+        this.requestInFlight = true;
         try {
-            this.rest.put(this.endpoint);
+            return this.rest.put(this.endpoint);
         } catch (IOException e) {
+            this.requestInFlight = false;
             this.onStatusCodeError(e);
+            return null;
         }
     }
 
-    protected void delete(String url) {
+    protected RestCall delete(String url) {
+        this.stopRefreshing();
+
         this.requestType = "delete";
 
         this.endpoint = this.getEndpoint(url);
 
         this.showLoadingDialog();
+        this.rest.setIdempotencyKey(this.idempotencyKey);
+        this.rest.setHeaders(null);
+        this.rest.setKeepGzippedBody(false);
+        this.rest.setResponseProcessor(this.responseProcessor(null, null, this.invalidatedCacheTags));
+        this.requestInFlight = true;
         try {
-            this.rest.delete(this.endpoint);
+            return this.rest.delete(this.endpoint);
         } catch (IOException e) {
+            this.requestInFlight = false;
             this.onStatusCodeError(e);
+            return null;
         }
     }
 
@@ -410,8 +717,7 @@ public class RestApi {
                 }
             }
         } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            RestLog.w(TAG, "Couldn't read the JSON data", e);
         }
 
         return returnData;
@@ -419,8 +725,7 @@ public class RestApi {
 
     public MatrixCursor jsonArrayToMatrixCursor(JSONArray data, String[] keys, String keyToBeId, JSONObject filter) {
         MatrixCursor c = null;
-        int i, j;
-        MatrixCursor.RowBuilder row;
+        int i;
 
         if (data == null) {
             return c;
@@ -460,96 +765,14 @@ public class RestApi {
                 c = new MatrixCursor(keyAttributes);
             }
 
-            for (j = 0; j < data.length(); j++) {
-                JSONObject o = data.getJSONObject(j);
-                if (this.checkFilter(o, filter)) {
-                    row = c.newRow();
-                    for (i = 0; i < keys.length; i++) {
-                        String key = keys[i];
-                        if (o.has(key) && !o.isNull(key)) {
-                            row.add(o.get(key));
-                        } else {
-                            row.add(null);
-                        }
-                    }
-                }
-            }
+            final MatrixCursor cursor = c;
+            JsonFilter.select(data, keys, filter, cursor::addRow);
         } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            RestLog.w(TAG, "Couldn't read the JSON data", e);
         }
         return c;
     }
 
-    private boolean checkFilter(JSONObject data, JSONObject filter) throws JSONException {
-        if (filter == null) {
-            return true;
-        }
-
-        boolean ok = true;
-
-        JSONArray names = filter.names();
-        if (names != null) {
-            for (int i = 0; i < names.length(); i++) {
-                String key = names.getString(i);
-
-                if (key.contains(".")) {
-                    StringTokenizer tokens = new StringTokenizer(key, ".");
-
-                    JSONObject tempData = new JSONObject(data.toString());
-
-                    String token = null;
-                    while (tokens.hasMoreTokens()) {
-                        token = tokens.nextToken();
-
-                        // if this isn't the last one, keep getting the object
-                        if (tokens.hasMoreTokens()) {
-                            if (tempData.has(token) && !tempData.isNull(token)) {
-                                tempData = tempData.getJSONObject(token);
-                            } else {
-                                ok = false;
-                                break;
-                            }
-                        }
-                    }
-
-                    if (token != null) {
-                        if (tempData.has(token)) {
-                            if (!tempData.get(token).equals(filter.get(key))) {
-                                ok = false;
-                                break;
-                            }
-                        }
-                    }
-                } else if (data.has(key) && data.get(key) instanceof JSONArray) {
-                    ok = false;
-
-                    JSONArray array = data.getJSONArray(key);
-                    for (int j = 0; j < array.length(); j++) {
-                        if (array.get(j).equals(filter.get(key))) {
-                            ok = true;
-                            break;
-                        }
-                    }
-
-                    break;
-                } else {
-                    if (data.has(key)) {
-                        if (!data.get(key).equals(filter.get(key))) {
-                            ok = false;
-                            break;
-                        }
-                    } else {
-                        ok = false;
-                        break;
-                    }
-                }
-            }
-        }
-
-        return ok;
-    }
-
     public static JSONArray replaceObject(JSONArray data, JSONObject obj, String id) {
         JSONObject o;
         JSONArray newData = new JSONArray();
@@ -564,7 +787,7 @@ public class RestApi {
                 }
             }
         } catch (JSONException e) {
-            e.printStackTrace();
+            RestLog.w(TAG, "Couldn't read the JSON data", e);
         }
 
         return newData;
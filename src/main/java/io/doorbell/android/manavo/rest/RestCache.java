@@ -1,156 +1,545 @@
 package io.doorbell.android.manavo.rest;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import io.doorbell.core.cache.CacheEntry;
+import io.doorbell.core.cache.CacheIndex;
+import io.doorbell.core.cache.DiskCache;
+import io.doorbell.core.cache.MemoryCache;
+import io.doorbell.core.rest.CacheKeyGenerator;
+import io.doorbell.core.rest.CanonicalCacheKeyGenerator;
+import io.doorbell.core.rest.Sha1CacheKeyGenerator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class RestCache {
 
+    private static final CacheKeyGenerator KEY_GENERATOR = new CanonicalCacheKeyGenerator();
+
+    private static final String DIRECTORY = "doorbell_rest_cache";
+
+    private static final MemoryCache<Cached> MEMORY = new MemoryCache<>(1024 * 1024);
+
+    // Of what's on disk, filled in as the disk cache opens
+    private static final CacheIndex INDEX = new CacheIndex();
+
+    private static DiskCache disk;
+    private static long diskCacheSize = 10 * 1024 * 1024;
+
+    // Smaller responses aren't worth gzipping here
+    private static final int MIN_COMPRESS_SIZE = 512;
+
+    private static volatile boolean compress = true;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static ExecutorService executor;
+    private static Handler mainHandler;
+
+    public interface ResultCallback<T> {
+        /**
+         * Called on the main thread.
+         */
+        void onResult(T result);
+    }
+
+    /**
+     * @deprecated waits for the cache thread, which may be busy writing or compacting, so it must
+     * not be called on the main thread. Use {@link #exists(RestApi, ResultCallback)}.
+     */
+    @Deprecated
     public static boolean exists(RestApi api) throws UnsupportedEncodingException {
         String hash = RestCache.getRequestHash(api);
         if (hash == null) {
             return false;
-        } else {
-            File file = RestCache.getFile(api.activity, hash);
-            return file.exists();
         }
+
+        Context c = api.activity;
+        Boolean exists = RestCache.await(() -> RestCache.contains(c, hash));
+        return exists != null && exists;
+    }
+
+    /**
+     * Checks on the cache thread whether the api's request has a cached response.
+     */
+    public static void exists(RestApi api, final ResultCallback<Boolean> callback) throws UnsupportedEncodingException {
+        String hash = RestCache.getRequestHash(api);
+        Context c = api.activity;
+
+        RestCache.execute(() -> {
+            final boolean exists = hash != null && RestCache.contains(c, hash);
+            RestCache.getMainHandler().post(() -> callback.onResult(exists));
+        });
     }
 
+    /**
+     * @deprecated waits for the cache thread, which may be busy writing or compacting, so it must
+     * not be called on the main thread. Use {@link #get(RestApi, ResultCallback)}.
+     */
+    @Deprecated
     public static String get(RestApi api) throws UnsupportedEncodingException {
         String hash = RestCache.getRequestHash(api);
         if (hash == null) {
             return null;
-        } else {
-            File file = RestCache.getFile(api.activity, hash);
+        }
 
-            BufferedReader r;
-            try {
-                r = new BufferedReader(new FileReader(file));
-                StringBuilder total = new StringBuilder();
-                String line;
-                while ((line = r.readLine()) != null) {
-                    total.append(line);
-                }
-                r.close();
+        Context c = api.activity;
+        return RestCache.await(() -> RestCache.getText(c, hash));
+    }
 
-                return total.toString();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Reads the api's request's cached response on the cache thread.
+     *
+     * @param callback given the response, or null if there's none
+     */
+    public static void get(RestApi api, final ResultCallback<String> callback) throws UnsupportedEncodingException {
+        String hash = RestCache.getRequestHash(api);
+        Context c = api.activity;
+
+        RestCache.execute(() -> {
+            final String text = hash != null ? RestCache.getText(c, hash) : null;
+            RestCache.getMainHandler().post(() -> callback.onResult(text));
+        });
+    }
+
+    private static boolean contains(Context c, String hash) {
+        DiskCache disk = RestCache.getDiskCache(c);
+        return disk != null && disk.contains(hash);
+    }
 
+    private static String getText(Context c, String hash) {
+        CacheEntry entry = RestCache.read(c, hash);
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            return entry.getText();
+        } catch (IOException e) {
+            RestLog.w("RestCache", "Couldn't read cache entry", e);
             return null;
         }
     }
 
-    public static void save(RestApi api, String data) throws UnsupportedEncodingException {
-        String hash = RestCache.getRequestHash(api);
+    /**
+     * A cached response, parsed, with the headers that say how fresh it is. The same JSONObject or
+     * JSONArray is handed out on every hit, so treat cached responses as read only.
+     */
+    static class Cached {
+        final Object data;
+        final CacheEntry entry;
 
-        if (hash != null) {
-            File file = RestCache.getFile(api.activity, hash);
-            BufferedWriter out;
+        Cached(Object data, CacheEntry entry) {
+            this.data = data;
+            // Only the metadata, the parsed data stands in for the body
+            this.entry = new CacheEntry(new byte[0], entry.getHeaders(), entry.getStoredAt());
+        }
+    }
+
+    interface LookupCallback {
+        /**
+         * @param cached the cached response, or null if there's nothing usable cached
+         */
+        void onLookup(Cached cached);
+    }
+
+    /**
+     * @return the cached response if it's in memory, without touching the disk
+     */
+    static Cached peek(String hash) {
+        return hash != null ? MEMORY.get(hash) : null;
+    }
+
+    /**
+     * Reads a request's cached response from disk on the cache thread, and hands it to the
+     * callback on the main thread.
+     */
+    static void lookup(Context c, final String hash, final LookupCallback callback) {
+        RestCache.execute(() -> {
+            CacheEntry entry = RestCache.read(c, hash);
+            final Cached cached = entry != null ? RestCache.remember(hash, entry) : null;
+
+            RestCache.getMainHandler().post(() -> callback.onLookup(cached));
+        });
+    }
+
+    static void save(Context c, String hash, String metadata, String data, Object parsed, Map<String, String> headers) {
+        RestCache.save(c, hash, metadata, data, parsed, headers, null);
+    }
+
+    /**
+     * Keeps the parsed response in memory, and queues saving it to disk.
+     *
+     * @param metadata the endpoint and tags it's indexed under, see {@link CacheIndex#metadata}
+     * @param gzipped the body exactly as the server sent it, if it came gzipped, which is then
+     *                stored as it is
+     */
+    static void save(Context c, String hash, String metadata, String data, Object parsed, Map<String, String> headers, byte[] gzipped) {
+        if (hash == null) {
+            return;
+        }
+
+        if (CacheEntry.cacheControl(headers != null ? headers.get(CacheEntry.CACHE_CONTROL) : null, "no-store") != null) {
+            MEMORY.remove(hash);
+            RestCache.execute(() -> RestCache.remove(c, hash));
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        if (parsed instanceof JSONObject || parsed instanceof JSONArray) {
+            MEMORY.put(hash, new Cached(parsed, new CacheEntry(new byte[0], headers, now)), RestCache.estimateSize(data));
+        } else {
+            // Whatever is in memory is out of date now
+            MEMORY.remove(hash);
+        }
+
+        final boolean compress = RestCache.compress;
+        RestCache.execute(() -> {
             try {
-                out = new BufferedWriter(new FileWriter(file), 1024);
-                out.write(data);
-                out.close();
+                CacheEntry entry;
+                if (compress && gzipped != null) {
+                    entry = CacheEntry.gzipped(gzipped, headers, now);
+                } else if (compress && data.length() >= MIN_COMPRESS_SIZE) {
+                    entry = CacheEntry.compress(data.getBytes("utf-8"), headers, now);
+                } else {
+                    entry = new CacheEntry(data.getBytes("utf-8"), headers, now);
+                }
+                RestCache.write(c, hash, metadata, entry);
             } catch (IOException e) {
-                e.printStackTrace();
+                RestLog.w("RestCache", "Couldn't write cache entry", e);
             }
-        }
+        });
     }
 
-    public static void clear(Context c) {
-        // clear all the cache files
-        File cacheDir = c.getCacheDir();
-        for (File cacheFile : cacheDir.listFiles()) {
-            if (".".equals(cacheFile.getName()) || "..".equals(cacheFile.getName())) {
-                continue;  // Ignore the self and parent aliases.
+    /**
+     * Marks the cached response as fresh again, after the server answered 304 Not Modified. Waits
+     * for the cache thread, so only call it from a worker thread.
+     *
+     * @return the cached response, or null if it's gone in the meantime
+     */
+    static Cached revalidate(Context c, String hash, String metadata, Map<String, String> headers) {
+        return RestCache.await(() -> {
+            CacheEntry entry = RestCache.read(c, hash);
+            if (entry == null) {
+                return null;
             }
-            cacheFile.delete();
-        }
+
+            entry = entry.revalidated(headers, System.currentTimeMillis());
+            RestCache.write(c, hash, metadata, entry);
+
+            return RestCache.remember(hash, entry);
+        });
     }
 
-    private static File getFile(Context c, String hash) {
-        String filename = RestCache.getFilename(c, hash);
-        if (filename != null) {
-            return new File(filename);
-        } else {
+    public static void save(RestApi api, String data) throws UnsupportedEncodingException {
+        RestCache.save(api.activity, RestCache.getRequestHash(api), CacheIndex.metadata(api.endpoint, api.cacheTags), data, null, null);
+    }
+
+    private static Cached remember(String hash, CacheEntry entry) {
+        String text;
+        Object data;
+        try {
+            // Decoded once, and parsed without trimming it first
+            text = entry.getText();
+            data = new JSONTokener(text).nextValue();
+        } catch (JSONException | IOException e) {
+            RestLog.w("RestCache", "Couldn't read cache entry", e);
             return null;
         }
+
+        if (!(data instanceof JSONObject) && !(data instanceof JSONArray)) {
+            return null;
+        }
+
+        Cached cached = new Cached(data, entry);
+        MEMORY.put(hash, cached, RestCache.estimateSize(text));
+        return cached;
     }
 
-    private static String getFilename(Context c, String hash) {
-        File dir = c.getCacheDir();
+    private static CacheEntry read(Context c, String hash) {
+        DiskCache disk = RestCache.getDiskCache(c);
+        if (disk == null) {
+            return null;
+        }
 
-        if (!dir.canWrite()) {
+        try {
+            ByteBuffer data = disk.getBuffer(hash);
+            return data != null ? CacheEntry.decode(data) : null;
+        } catch (IOException e) {
+            RestLog.w("RestCache", "Couldn't read cache entry", e);
             return null;
         }
+    }
 
-        String cachePath = dir.getAbsolutePath();
+    private static void write(Context c, String hash, String metadata, CacheEntry entry) {
+        DiskCache disk = RestCache.getDiskCache(c);
+        if (disk == null) {
+            return;
+        }
 
-        return cachePath + "/" + hash;
+        try {
+            disk.put(hash, entry.encode(), metadata);
+        } catch (IOException e) {
+            RestLog.w("RestCache", "Couldn't write cache entry", e);
+        }
     }
 
-    private static String getRequestHash(RestApi api) throws UnsupportedEncodingException {
-        Map<String, String> params = api.getParameters();
+    private static void remove(Context c, String hash) {
+        DiskCache disk = RestCache.getDiskCache(c);
+        if (disk == null) {
+            return;
+        }
 
-        if (api.endpoint == null) {
-            return null;
+        try {
+            disk.remove(hash);
+        } catch (IOException e) {
+            RestLog.w("RestCache", "Couldn't remove cache entry", e);
         }
+    }
 
-        StringBuilder query = new StringBuilder(api.endpoint);
+    /**
+     * Removes the SDK's cached responses, and leaves the rest of the app's cache directory alone.
+     * Reads queued after this won't see them.
+     */
+    public static void clear(Context c) {
+        MEMORY.clear();
 
-        for (String key : params.keySet()) {
-            query.append(URLEncoder.encode(key, "utf-8")).append("=").append(URLEncoder.encode(params.get(key), "utf-8")).append("&");
+        RestCache.execute(() -> {
+            DiskCache disk = RestCache.getDiskCache(c);
+            if (disk != null) {
+                try {
+                    disk.clear();
+                } catch (IOException e) {
+                    RestLog.w("RestCache", "Couldn't clear the cache", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the cached responses of every request made with the tag, see
+     * {@link RestApi#addCacheTag}. Reads queued after this won't see them.
+     */
+    public static void invalidateTag(Context c, String tag) {
+        RestCache.invalidate(c, Collections.singleton(tag), null);
+    }
+
+    /**
+     * Removes the cached responses of every request to an endpoint, the full url without its
+     * parameters, starting with the prefix. Reads queued after this won't see them.
+     */
+    public static void invalidateEndpointPrefix(Context c, String prefix) {
+        RestCache.invalidate(c, null, Collections.singleton(prefix));
+    }
+
+    static void invalidate(Context c, Collection<String> tags, Collection<String> prefixes) {
+        // Right away for what's already on disk, so memory stops serving it before the cache
+        // thread gets to it
+        for (String hash : RestCache.getIndexedHashes(tags, prefixes)) {
+            MEMORY.remove(hash);
         }
 
-        // get rid of the last ampersand
-        if (query.length() > 0) {
-            query.substring(0, query.length() - 1);
+        RestCache.execute(() -> {
+            DiskCache disk = RestCache.getDiskCache(c);
+            if (disk == null) {
+                return;
+            }
+
+            // Again, now that the saves queued before have been written
+            for (String hash : RestCache.getIndexedHashes(tags, prefixes)) {
+                MEMORY.remove(hash);
+                try {
+                    disk.remove(hash);
+                } catch (IOException e) {
+                    RestLog.w("RestCache", "Couldn't remove cache entry", e);
+                }
+            }
+        });
+    }
+
+    private static Set<String> getIndexedHashes(Collection<String> tags, Collection<String> prefixes) {
+        Set<String> hashes = new HashSet<>();
+        if (tags != null) {
+            for (String tag : tags) {
+                hashes.addAll(INDEX.getKeysForTag(tag));
+            }
+        }
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                hashes.addAll(INDEX.getKeysForEndpointPrefix(prefix));
+            }
         }
+        return hashes;
+    }
 
+    /**
+     * Runs cache file I/O on the cache thread, one task at a time in the order queued, so a read
+     * always sees the writes queued before it.
+     */
+    private static void execute(Runnable task) {
+        RestCache.getExecutor().execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                RestLog.e("RestCache", "Cache task failed", e);
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the cache thread and waits for it.
+     *
+     * @return what it returned, or null if it failed
+     */
+    private static <T> T await(Callable<T> task) {
         try {
-            return RestCache.SHA1(query.toString());
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-            e.printStackTrace();
+            return RestCache.getExecutor().submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            RestLog.e("RestCache", "Cache task failed", e.getCause());
         }
 
         return null;
     }
 
-    private static String convertToHex(byte[] data) {
-        StringBuffer buf = new StringBuffer();
-        for (int i = 0; i < data.length; i++) {
-            int halfbyte = (data[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-            do {
-                if ((0 <= halfbyte) && (halfbyte <= 9)) {
-                    buf.append((char) ('0' + halfbyte));
-                } else {
-                    buf.append((char) ('a' + (halfbyte - 10)));
+    private static synchronized ExecutorService getExecutor() {
+        if (RestCache.executor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), r -> {
+                        Thread thread = new Thread(r, "Doorbell Cache");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // Like the dispatcher, don't keep a thread around once the app stops using the cache
+            executor.allowCoreThreadTimeOut(true);
+            RestCache.executor = executor;
+        }
+
+        return RestCache.executor;
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (RestCache.mainHandler == null) {
+            RestCache.mainHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return RestCache.mainHandler;
+    }
+
+    /**
+     * The parsed responses kept in front of the files, with their hit, miss and eviction counts.
+     */
+    public static MemoryCache<?> getMemoryCache() {
+        return MEMORY;
+    }
+
+    /**
+     * @param bytes roughly how much memory parsed responses can take up, 1MB by default
+     */
+    public static void setMemoryCacheSize(long bytes) {
+        MEMORY.setMaxSize(bytes);
+    }
+
+    /**
+     * @param bytes how much disk space cached responses can take up, 10MB by default
+     */
+    public static synchronized void setDiskCacheSize(long bytes) {
+        RestCache.diskCacheSize = bytes;
+
+        RestCache.execute(() -> {
+            DiskCache disk = RestCache.getOpenDiskCache();
+            if (disk != null) {
+                try {
+                    disk.setMaxSize(bytes);
+                } catch (IOException e) {
+                    RestLog.w("RestCache", "Couldn't trim the cache", e);
                 }
-                halfbyte = data[i] & 0x0F;
-            } while (two_halfs++ < 1);
+            }
+        });
+    }
+
+    /**
+     * Whether cached responses are stored gzipped: as the server sent them when it gzipped them,
+     * or compressed here when it didn't. On by default, and entries are read either way.
+     */
+    public static void setCompressionEnabled(boolean enabled) {
+        RestCache.compress = enabled;
+    }
+
+    private static synchronized DiskCache getOpenDiskCache() {
+        return RestCache.disk;
+    }
+
+    /**
+     * @return the cache, or null if its directory can't be used
+     */
+    private static synchronized DiskCache getDiskCache(Context c) {
+        if (RestCache.disk == null) {
+            // Entries older versions wrote straight into the cache directory are left alone, they
+            // can't be told apart from the app's own files. The system clears them when it needs
+            // the space.
+            File directory = new File(c.getCacheDir(), DIRECTORY);
+
+            try {
+                RestCache.disk = new DiskCache(directory, RestCache.diskCacheSize, INDEX);
+            } catch (IOException e) {
+                RestLog.w("RestCache", "Couldn't open the cache", e);
+                return null;
+            }
+        }
+
+        return RestCache.disk;
+    }
+
+    private static long estimateSize(String text) {
+        // A parsed tree takes a few times the size of its text
+        return text.length() * 4L;
+    }
+
+    static String getRequestHash(RestApi api) throws UnsupportedEncodingException {
+        return RestCache.getRequestHash(api.endpoint, api.getParameters());
+    }
+
+    static String getRequestHash(String endpoint, Map<String, String> parameters) {
+        if (endpoint == null) {
+            return null;
         }
-        return buf.toString();
+
+        try {
+            return KEY_GENERATOR.key(endpoint, parameters);
+        } catch (IOException e) {
+            RestLog.e("RestCache", "Couldn't compute the cache key", e);
+        }
+
+        return null;
     }
 
     public static String SHA1(String text) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        MessageDigest md;
-        md = MessageDigest.getInstance("SHA-1");
-        byte[] sha1hash = new byte[40];
-        md.update(text.getBytes("ISO-8859-1"), 0, text.length());
-        sha1hash = md.digest();
-        return convertToHex(sha1hash);
+        return Sha1CacheKeyGenerator.sha1(text);
     }
 
     public static class CachePolicy {
@@ -159,5 +548,12 @@ public class RestCache {
         public static final int NETWORK_ONLY = 2;
         public static final int CACHE_ELSE_NETWORK = 3;
         public static final int UPDATE_CACHE = 4;
+        /**
+         * Serves a fresh cached response without going to the network. A stale one is still
+         * served, and refreshed in the background, until it's past the stale-while-revalidate
+         * window too. See {@link RestApi#setCacheMaxAge} and
+         * {@link RestApi#setCacheStaleWhileRevalidate}.
+         */
+        public static final int STALE_WHILE_REVALIDATE = 5;
     }
 }
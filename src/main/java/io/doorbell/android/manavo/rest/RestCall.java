@@ -0,0 +1,14 @@
+package io.doorbell.android.manavo.rest;
+
+/**
+ * Handle to a single get/post/put/delete.
+ */
+public interface RestCall {
+    /**
+     * Drops the call if it is still queued, or aborts its connection if it is already running.
+     * Its result is never delivered either way.
+     */
+    void cancel();
+
+    boolean isCanceled();
+}
@@ -0,0 +1,172 @@
+package io.doorbell.android.manavo.rest;
+
+import java.net.URL;
+
+/**
+ * Timings and sizes of one finished call, handed to a {@link RestMetricsListener}.
+ *
+ * Durations are in milliseconds and, when a call was retried, describe its last attempt. Byte
+ * counts add up every attempt. Anything the call never got to, like the first byte of a request
+ * that failed to connect, is reported as -1.
+ */
+public class RestCallMetrics {
+
+    private final String method;
+    private final URL url;
+    private final long queuedAt;
+    private final long queuedNanos;
+
+    // Offsets from queuedNanos, -1 until reached
+    long dispatchNanos = -1;
+    long connectNanos = -1;
+    long firstByteNanos = -1;
+    long bodyEndNanos = -1;
+    long endNanos = -1;
+
+    long bytesSent = 0;
+    long bytesReceived = 0;
+    long bytesReceivedUncompressed = 0;
+
+    int statusCode = -1;
+    int retryCount = 0;
+    boolean canceled = false;
+
+    // Sent If-None-Match or If-Modified-Since, so 304 Not Modified is an answer like any other
+    boolean conditional = false;
+
+    RestCallMetrics(String method, URL url) {
+        this.method = method;
+        this.url = url;
+        this.queuedAt = System.currentTimeMillis();
+        this.queuedNanos = System.nanoTime();
+    }
+
+    long elapsed() {
+        return System.nanoTime() - this.queuedNanos;
+    }
+
+    public String getMethod() {
+        return this.method;
+    }
+
+    public URL getUrl() {
+        return this.url;
+    }
+
+    /**
+     * The last path segment that isn't an id, so every application's "applications/123/submit"
+     * is grouped under "submit".
+     */
+    public String getEndpoint() {
+        String[] segments = this.url.getPath().split("/");
+        for (int i = segments.length - 1; i >= 0; i--) {
+            String segment = segments[i];
+            if (segment.length() > 0 && !segment.matches("\\d+")) {
+                return segment;
+            }
+        }
+
+        return "/";
+    }
+
+    /**
+     * Wall clock time, in milliseconds, at which the call was made.
+     */
+    public long getQueuedAt() {
+        return this.queuedAt;
+    }
+
+    /**
+     * Time spent waiting for the dispatcher to run the call.
+     */
+    public long getQueueMillis() {
+        return RestCallMetrics.millis(0, this.dispatchNanos);
+    }
+
+    /**
+     * From the dispatcher running the call to the last attempt opening its connection, which
+     * includes any backoff between attempts.
+     */
+    public long getDispatchMillis() {
+        return RestCallMetrics.millis(this.dispatchNanos, this.connectNanos);
+    }
+
+    /**
+     * From opening the connection to the response status, sending the body on the way.
+     */
+    public long getTimeToFirstByteMillis() {
+        return RestCallMetrics.millis(this.connectNanos, this.firstByteNanos);
+    }
+
+    public long getBodyReadMillis() {
+        return RestCallMetrics.millis(this.firstByteNanos, this.bodyEndNanos);
+    }
+
+    /**
+     * From the call being made to it finishing, queueing and retries included.
+     */
+    public long getTotalMillis() {
+        return RestCallMetrics.millis(0, this.endNanos);
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    /**
+     * Response body bytes as they came off the wire, so compressed if the server gzipped them.
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    public long getBytesReceivedUncompressed() {
+        return this.bytesReceivedUncompressed;
+    }
+
+    /**
+     * @return the status code of the last attempt, or -1 if it didn't get a response
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    public int getRetryCount() {
+        return this.retryCount;
+    }
+
+    public boolean isCanceled() {
+        return this.canceled;
+    }
+
+    public boolean isConditional() {
+        return this.conditional;
+    }
+
+    /**
+     * @return whether the call got a 2xx, or a 304 Not Modified to a conditional request
+     */
+    public boolean isSuccessful() {
+        return !this.canceled && ((this.statusCode >= 200 && this.statusCode < 300) || (this.statusCode == 304 && this.conditional));
+    }
+
+    private static long millis(long from, long to) {
+        if (from < 0 || to < 0) {
+            return -1;
+        }
+
+        return (to - from) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return this.method + " " + this.getEndpoint() + " " + this.statusCode
+                + " total=" + this.getTotalMillis() + "ms"
+                + " queue=" + this.getQueueMillis() + "ms"
+                + " ttfb=" + this.getTimeToFirstByteMillis() + "ms"
+                + " body=" + this.getBodyReadMillis() + "ms"
+                + " sent=" + this.bytesSent + "B"
+                + " received=" + this.bytesReceived + "/" + this.bytesReceivedUncompressed + "B"
+                + " retries=" + this.retryCount;
+    }
+}
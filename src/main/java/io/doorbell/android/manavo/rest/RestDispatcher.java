@@ -0,0 +1,336 @@
+package io.doorbell.android.manavo.rest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide dispatcher shared by every {@link RestRequest}.
+ *
+ * Calls are queued and only handed to a worker thread while both the global and
+ * the per-host limits allow it. Idle workers are released after a minute, so an
+ * app that stops making requests doesn't keep any threads around. Responses are
+ * always read to the end, which lets HttpURLConnection hand the warm keep-alive
+ * connection over to the next call to the same host.
+ *
+ * A call that backs off before trying again gives up its place while it waits, and is queued
+ * again behind the others once the wait is over.
+ */
+public class RestDispatcher {
+
+    private static final int DEFAULT_MAX_REQUESTS = 4;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static RestDispatcher instance;
+
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    private final ThreadFactory threadFactory;
+    private ExecutorService executorService;
+    private ScheduledExecutorService scheduler;
+
+    private final Deque<AsyncCall> readyCalls = new ArrayDeque<>();
+    private final Deque<AsyncCall> runningCalls = new ArrayDeque<>();
+
+    // Backing off, neither queued nor running
+    private final Set<AsyncCall> delayedCalls = new HashSet<>();
+
+    public RestDispatcher() {
+        this(new DispatcherThreadFactory());
+    }
+
+    /**
+     * @param threadFactory makes the worker threads, e.g. to run them at a lower priority
+     */
+    public RestDispatcher(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    public static synchronized RestDispatcher getInstance() {
+        if (instance == null) {
+            instance = new RestDispatcher();
+        }
+
+        return instance;
+    }
+
+    public synchronized void setMaxRequests(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+        }
+
+        this.maxRequests = maxRequests;
+        this.promoteCalls();
+    }
+
+    public synchronized int getMaxRequests() {
+        return this.maxRequests;
+    }
+
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.promoteCalls();
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return this.maxRequestsPerHost;
+    }
+
+    public synchronized int queuedCallsCount() {
+        return this.readyCalls.size();
+    }
+
+    public synchronized int runningCallsCount() {
+        return this.runningCalls.size();
+    }
+
+    public synchronized int delayedCallsCount() {
+        return this.delayedCalls.size();
+    }
+
+    synchronized void enqueue(AsyncCall call) {
+        call.dispatcher = this;
+        this.readyCalls.add(call);
+        this.promoteCalls();
+    }
+
+    void cancel(AsyncCall call) {
+        boolean dropped;
+        synchronized (this) {
+            if (call.canceled) {
+                return;
+            }
+            call.canceled = true;
+
+            dropped = this.readyCalls.remove(call) || this.delayedCalls.remove(call);
+            if (!dropped && !this.runningCalls.contains(call)) {
+                return;
+            }
+        }
+
+        if (dropped) {
+            // It never runs again, so this is the last it hears
+            call.onDropped();
+            return;
+        }
+
+        // Aborting may have to close a socket, so don't hold the lock for it
+        call.onCancel();
+    }
+
+    /**
+     * Cancels every queued and running call belonging to the given tag.
+     */
+    void cancelAll(Object tag) {
+        List<AsyncCall> calls = new ArrayList<>();
+
+        synchronized (this) {
+            for (AsyncCall call : this.readyCalls) {
+                if (call.tag == tag) {
+                    calls.add(call);
+                }
+            }
+
+            for (AsyncCall call : this.runningCalls) {
+                if (call.tag == tag) {
+                    calls.add(call);
+                }
+            }
+
+            for (AsyncCall call : this.delayedCalls) {
+                if (call.tag == tag) {
+                    calls.add(call);
+                }
+            }
+        }
+
+        for (AsyncCall call : calls) {
+            this.cancel(call);
+        }
+    }
+
+    private synchronized ExecutorService executorService() {
+        if (this.executorService == null) {
+            // The pool itself is unbounded, the dispatcher never runs more than maxRequests calls at once
+            this.executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), this.threadFactory);
+        }
+
+        return this.executorService;
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (this.scheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new DispatcherThreadFactory("Doorbell Dispatcher Scheduler"));
+            scheduler.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+            this.scheduler = scheduler;
+        }
+
+        return this.scheduler;
+    }
+
+    /**
+     * @param retryDelay how long to wait before queueing the call again, or -1 if it's done
+     * @return true if the call was to be retried but got canceled, so it won't run again
+     */
+    private synchronized boolean finished(AsyncCall call, long retryDelay) {
+        this.runningCalls.remove(call);
+
+        boolean dropped = retryDelay >= 0 && call.canceled;
+        if (retryDelay >= 0 && !call.canceled) {
+            this.delayedCalls.add(call);
+            this.scheduler().schedule(() -> this.retry(call), retryDelay, TimeUnit.MILLISECONDS);
+        }
+
+        this.promoteCalls();
+        return dropped;
+    }
+
+    private synchronized void retry(AsyncCall call) {
+        // Gone if it was canceled in the meantime
+        if (this.delayedCalls.remove(call)) {
+            this.readyCalls.add(call);
+            this.promoteCalls();
+        }
+    }
+
+    private void promoteCalls() {
+        if (this.runningCalls.size() >= this.maxRequests) {
+            return;
+        }
+
+        for (Iterator<AsyncCall> i = this.readyCalls.iterator(); i.hasNext(); ) {
+            AsyncCall call = i.next();
+
+            if (this.runningCallsForHost(call.host) < this.maxRequestsPerHost) {
+                i.remove();
+                this.runningCalls.add(call);
+                this.executorService().execute(call);
+            }
+
+            if (this.runningCalls.size() >= this.maxRequests) {
+                return;
+            }
+        }
+    }
+
+    private int runningCallsForHost(String host) {
+        int count = 0;
+        for (AsyncCall call : this.runningCalls) {
+            if (call.host.equals(host)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    abstract static class AsyncCall implements Runnable, RestCall {
+        final Object tag;
+        final String host;
+        private RestDispatcher dispatcher;
+
+        volatile boolean canceled = false;
+
+        // Set by execute() to run the call again after this many milliseconds
+        private long retryDelay = -1;
+
+        AsyncCall(Object tag, String host) {
+            this.tag = tag;
+            this.host = host != null ? host : "";
+        }
+
+        @Override
+        public void cancel() {
+            this.dispatcher.cancel(this);
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return this.canceled;
+        }
+
+        protected abstract void execute();
+
+        /**
+         * Runs the call again once the delay is up, rather than finishing it, when called from
+         * {@link #execute}. Its place is given up in the meantime.
+         */
+        protected void retryAfter(long delayMillis) {
+            this.retryDelay = delayMillis;
+        }
+
+        /**
+         * Called when a running call gets canceled, to abort whatever it's blocked on.
+         */
+        protected void onCancel() {
+        }
+
+        /**
+         * Called once a canceled call won't run again, when it's canceled while queued or
+         * backing off, on the thread that canceled it, or on the worker thread if it was
+         * canceled just as it was about to run or to start backing off.
+         */
+        protected void onDropped() {
+        }
+
+        @Override
+        public void run() {
+            long retryDelay = -1;
+            boolean dropped = false;
+            try {
+                if (!this.canceled) {
+                    this.retryDelay = -1;
+                    this.execute();
+                    retryDelay = this.retryDelay;
+                } else {
+                    dropped = true;
+                }
+            } finally {
+                dropped |= this.dispatcher.finished(this, retryDelay);
+            }
+
+            if (dropped) {
+                this.onDropped();
+            }
+        }
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        DispatcherThreadFactory() {
+            this("Doorbell Dispatcher");
+        }
+
+        DispatcherThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, this.name + " " + this.count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.doorbell.android.manavo.rest;
+
+import android.util.Log;
+
+import java.util.regex.Pattern;
+
+/**
+ * Logging used throughout the SDK.
+ *
+ * Messages below the current level are dropped before they're built: pass a {@link Message}
+ * instead of a String for anything that takes work to put together. Request and response bodies
+ * should go through {@link #payload(String)}, which truncates them and masks keys, passwords and
+ * screenshots.
+ */
+public final class RestLog {
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    private static final String REDACTED = "<redacted>";
+
+    private static final Pattern FORM_SECRET = Pattern.compile(
+            "((?:^|[?&\\s])(?:key|password|token|android_screenshot)=)[^&\\s]*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern JSON_SECRET = Pattern.compile(
+            "(\"(?:key|password|token|android_screenshot)\"\\s*:\\s*)\"(?:[^\"\\\\]|\\\\.)*\"", Pattern.CASE_INSENSITIVE);
+
+    private static volatile int level = WARN;
+    private static volatile int maxPayloadLength = 1024;
+
+    public interface Message {
+        String build();
+    }
+
+    private RestLog() {
+    }
+
+    /**
+     * @param level one of the android.util.Log levels, or {@link #NONE} to switch logging off
+     */
+    public static void setLevel(int level) {
+        RestLog.level = level;
+    }
+
+    public static int getLevel() {
+        return RestLog.level;
+    }
+
+    public static void setMaxPayloadLength(int maxPayloadLength) {
+        RestLog.maxPayloadLength = maxPayloadLength;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= RestLog.level;
+    }
+
+    public static void d(String tag, Message message) {
+        if (RestLog.isLoggable(DEBUG)) {
+            Log.d(tag, message.build());
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (RestLog.isLoggable(DEBUG)) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (RestLog.isLoggable(INFO)) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (RestLog.isLoggable(WARN)) {
+            Log.w(tag, message);
+        }
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        if (RestLog.isLoggable(WARN)) {
+            Log.w(tag, message, throwable);
+        }
+    }
+
+    public static void w(String tag, Message message, Throwable throwable) {
+        if (RestLog.isLoggable(WARN)) {
+            Log.w(tag, message.build(), throwable);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (RestLog.isLoggable(ERROR)) {
+            Log.e(tag, message);
+        }
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        if (RestLog.isLoggable(ERROR)) {
+            Log.e(tag, message, throwable);
+        }
+    }
+
+    /**
+     * Makes a body or URL safe, and short enough, to log. The whole of it is redacted before it's
+     * truncated, so a secret cut off at the end can't slip through.
+     */
+    public static String payload(String data) {
+        if (data == null) {
+            return "null";
+        }
+
+        String redacted = FORM_SECRET.matcher(data).replaceAll("$1" + REDACTED);
+        redacted = JSON_SECRET.matcher(redacted).replaceAll("$1\"" + REDACTED + "\"");
+
+        int max = RestLog.maxPayloadLength;
+        if (redacted.length() > max) {
+            return redacted.substring(0, max) + "... (" + (redacted.length() - max) + " more chars)";
+        }
+
+        return redacted;
+    }
+}
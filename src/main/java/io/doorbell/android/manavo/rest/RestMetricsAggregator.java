@@ -0,0 +1,148 @@
+package io.doorbell.android.manavo.rest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the most recent calls to each endpoint in memory and works out percentiles over them.
+ *
+ * Only the last {@code window} calls per endpoint are kept, so the numbers follow what the app is
+ * doing now rather than since it started, and memory stays bounded.
+ */
+public class RestMetricsAggregator implements RestMetricsListener {
+
+    private final int window;
+    private final Map<String, Endpoint> endpoints = new HashMap<>();
+
+    private static class Endpoint {
+        final long[] totalMillis;
+        final long[] timeToFirstByteMillis;
+        int next = 0;
+        int size = 0;
+
+        long count = 0;
+        long failures = 0;
+        long retries = 0;
+        long bytesSent = 0;
+        long bytesReceived = 0;
+
+        Endpoint(int window) {
+            this.totalMillis = new long[window];
+            this.timeToFirstByteMillis = new long[window];
+        }
+    }
+
+    public RestMetricsAggregator() {
+        this(500);
+    }
+
+    public RestMetricsAggregator(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window < 1: " + window);
+        }
+
+        this.window = window;
+    }
+
+    @Override
+    public synchronized void callFinished(RestCallMetrics metrics) {
+        if (metrics.isCanceled()) {
+            return;
+        }
+
+        Endpoint endpoint = this.endpoints.get(metrics.getEndpoint());
+        if (endpoint == null) {
+            endpoint = new Endpoint(this.window);
+            this.endpoints.put(metrics.getEndpoint(), endpoint);
+        }
+
+        endpoint.totalMillis[endpoint.next] = metrics.getTotalMillis();
+        endpoint.timeToFirstByteMillis[endpoint.next] = metrics.getTimeToFirstByteMillis();
+        endpoint.next = (endpoint.next + 1) % this.window;
+        endpoint.size = Math.min(endpoint.size + 1, this.window);
+
+        endpoint.count++;
+        if (!metrics.isSuccessful()) {
+            endpoint.failures++;
+        }
+        endpoint.retries += metrics.getRetryCount();
+        endpoint.bytesSent += metrics.getBytesSent();
+        endpoint.bytesReceived += metrics.getBytesReceived();
+    }
+
+    public synchronized Set<String> getEndpoints() {
+        return new TreeSet<>(this.endpoints.keySet());
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 50 for the median or 99
+     * @return the total duration, in milliseconds, or -1 if the endpoint wasn't called yet
+     */
+    public long percentile(String endpoint, double percentile) {
+        return this.percentile(endpoint, percentile, false);
+    }
+
+    public long timeToFirstBytePercentile(String endpoint, double percentile) {
+        return this.percentile(endpoint, percentile, true);
+    }
+
+    public synchronized long getCount(String endpoint) {
+        Endpoint e = this.endpoints.get(endpoint);
+        return e != null ? e.count : 0;
+    }
+
+    public synchronized long getFailureCount(String endpoint) {
+        Endpoint e = this.endpoints.get(endpoint);
+        return e != null ? e.failures : 0;
+    }
+
+    public synchronized long getRetryCount(String endpoint) {
+        Endpoint e = this.endpoints.get(endpoint);
+        return e != null ? e.retries : 0;
+    }
+
+    public synchronized long getBytesSent(String endpoint) {
+        Endpoint e = this.endpoints.get(endpoint);
+        return e != null ? e.bytesSent : 0;
+    }
+
+    public synchronized long getBytesReceived(String endpoint) {
+        Endpoint e = this.endpoints.get(endpoint);
+        return e != null ? e.bytesReceived : 0;
+    }
+
+    public synchronized void reset() {
+        this.endpoints.clear();
+    }
+
+    private long percentile(String endpoint, double percentile, boolean timeToFirstByte) {
+        long[] values;
+
+        synchronized (this) {
+            Endpoint e = this.endpoints.get(endpoint);
+            if (e == null || e.size == 0) {
+                return -1;
+            }
+
+            values = Arrays.copyOf(timeToFirstByte ? e.timeToFirstByteMillis : e.totalMillis, e.size);
+        }
+
+        Arrays.sort(values);
+
+        // Calls that never got that far are recorded as -1, leave them out
+        int from = 0;
+        while (from < values.length && values[from] < 0) {
+            from++;
+        }
+        if (from == values.length) {
+            return -1;
+        }
+
+        // Nearest rank
+        int rank = (int) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * (values.length - from));
+        return values[from + Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,10 @@
+package io.doorbell.android.manavo.rest;
+
+/**
+ * Told about every call, exactly once, once it's finished, failed or been canceled, including
+ * calls canceled before they ever ran. Runs on the dispatcher's worker thread, or for a call
+ * canceled while queued or backing off, on the thread that canceled it, so keep it quick.
+ */
+public interface RestMetricsListener {
+    void callFinished(RestCallMetrics metrics);
+}
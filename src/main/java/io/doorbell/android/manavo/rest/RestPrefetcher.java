@@ -0,0 +1,194 @@
+package io.doorbell.android.manavo.rest;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.Process;
+
+import io.doorbell.core.cache.CacheIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills the cache ahead of time, so the first {@link RestApi#get} of a screen is a cache hit.
+ *
+ * The gets are made once the main thread goes idle, and only on an unmetered network, one at a
+ * time on a dispatcher of their own, with a background priority thread, so they never hold up the
+ * app's requests. Their responses
+ * are cached exactly like the api's own gets, and nothing is delivered.
+ */
+public class RestPrefetcher {
+
+    private static final String TAG = "RestPrefetcher";
+
+    private static RestDispatcher dispatcher;
+
+    private final RestApi api;
+    private final List<Prefetch> prefetches = new ArrayList<>();
+
+    private boolean requireUnmetered = true;
+
+    private RestRequest rest;
+    private MessageQueue.IdleHandler idleHandler;
+
+    /**
+     * @param api where urls are resolved against, and whose credentials and settings are used
+     */
+    public RestPrefetcher(RestApi api) {
+        this.api = api;
+    }
+
+    /**
+     * @param url the same url that's passed to {@link RestApi#get}
+     */
+    public RestPrefetcher add(String url, Map<String, String> parameters) {
+        Map<String, String> copy = new HashMap<>();
+        if (parameters != null) {
+            copy.putAll(parameters);
+        }
+
+        this.prefetches.add(new Prefetch(this.api.getEndpoint(url), copy));
+        return this;
+    }
+
+    /**
+     * @param requireUnmetered false to prefetch on metered networks too, true by default
+     */
+    public RestPrefetcher setRequireUnmetered(boolean requireUnmetered) {
+        this.requireUnmetered = requireUnmetered;
+        return this;
+    }
+
+    /**
+     * Prefetches everything added so far, the next time the main thread is idle. Call it from the
+     * main thread.
+     */
+    public void start() {
+        this.cancel();
+
+        final List<Prefetch> prefetches = new ArrayList<>(this.prefetches);
+        this.idleHandler = () -> {
+            RestPrefetcher.this.idleHandler = null;
+            RestPrefetcher.this.prefetch(prefetches);
+
+            // Only once
+            return false;
+        };
+
+        Looper.myQueue().addIdleHandler(this.idleHandler);
+    }
+
+    /**
+     * Drops the prefetches that haven't been made yet, and aborts the one being made.
+     */
+    public void cancel() {
+        if (this.idleHandler != null) {
+            Looper.myQueue().removeIdleHandler(this.idleHandler);
+            this.idleHandler = null;
+        }
+
+        if (this.rest != null) {
+            this.rest.cancelRequest();
+        }
+    }
+
+    private void prefetch(List<Prefetch> prefetches) {
+        if (!this.isNetworkSuitable()) {
+            RestLog.d(TAG, "Not prefetching, no unmetered network");
+            return;
+        }
+
+        if (this.rest == null) {
+            this.rest = new RestRequest(this.api.rest, RestPrefetcher.getDispatcher());
+            this.rest.setHandler(new Handler(Looper.getMainLooper(), (Message msg) -> {
+                if (!msg.getData().containsKey("data") || msg.obj instanceof Exception) {
+                    RestLog.d(TAG, "Prefetch failed");
+                }
+                return true;
+            }));
+        }
+
+        for (Prefetch prefetch : prefetches) {
+            // Like the api's get, which starts from the parameters it's reset to
+            Map<String, String> parameters = this.api.getDefaultParameters();
+            parameters.putAll(prefetch.parameters);
+
+            String cacheHash = RestCache.getRequestHash(prefetch.endpoint, parameters);
+            if (cacheHash == null) {
+                continue;
+            }
+
+            this.rest.setData(parameters);
+            this.rest.setKeepGzippedBody(true);
+            this.rest.setResponseProcessor(this.api.responseProcessor(cacheHash, CacheIndex.metadata(prefetch.endpoint, null), Collections.<String>emptyList()));
+
+            try {
+                this.rest.get(prefetch.endpoint);
+            } catch (IOException e) {
+                RestLog.w(TAG, () -> "Couldn't prefetch " + RestLog.payload(prefetch.endpoint), e);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isNetworkSuitable() {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) this.api.activity.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+            boolean connected;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Network network = cm.getActiveNetwork();
+                NetworkCapabilities capabilities = network != null ? cm.getNetworkCapabilities(network) : null;
+                connected = capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+            } else {
+                NetworkInfo info = cm.getActiveNetworkInfo();
+                connected = info != null && info.isConnected();
+            }
+
+            return connected && !(this.requireUnmetered && cm.isActiveNetworkMetered());
+        } catch (Exception e) {
+            // Without access to the network state, don't risk the user's data plan
+            return false;
+        }
+    }
+
+    private static synchronized RestDispatcher getDispatcher() {
+        if (RestPrefetcher.dispatcher == null) {
+            // Background priority, so prefetching never competes with the app for the CPU
+            RestPrefetcher.dispatcher = new RestDispatcher(r -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "Doorbell Prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            RestPrefetcher.dispatcher.setMaxRequests(1);
+            RestPrefetcher.dispatcher.setMaxRequestsPerHost(1);
+        }
+
+        return RestPrefetcher.dispatcher;
+    }
+
+    private static class Prefetch {
+        final String endpoint;
+        final Map<String, String> parameters;
+
+        Prefetch(String endpoint, Map<String, String> parameters) {
+            this.endpoint = endpoint;
+            this.parameters = parameters;
+        }
+    }
+}
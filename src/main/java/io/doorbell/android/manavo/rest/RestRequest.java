@@ -5,50 +5,127 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Base64;
-import android.util.Log;
 
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
 import com.google.android.gms.common.GooglePlayServicesRepairableException;
 import com.google.android.gms.security.ProviderInstaller;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import io.doorbell.core.cache.CacheEntry;
+import io.doorbell.core.rest.BodyEncoder;
+import io.doorbell.core.rest.FormBodyEncoder;
+import io.doorbell.core.rest.JsonBodyEncoder;
 
-import javax.net.ssl.HttpsURLConnection;
-import java.io.BufferedReader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.UUID;
 import java.util.zip.GZIPInputStream;
 
 
 public class RestRequest {
 
+    private static final String TAG = "RestRequest";
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final BodyEncoder FORM_ENCODER = new FormBodyEncoder();
+    private static final BodyEncoder JSON_ENCODER = new JsonBodyEncoder();
+
     private String username;
     private String password;
     private Handler handler;
-    private ExecutorService executorService;
+    private RestDispatcher dispatcher;
 
     private boolean acceptAllSslCertificates = false;
 
     private Map<String, String> data;
+    private Map<String, RestStreamBody> streamData;
 
     private String userAgent = null;
 
     private String contentType = null;
 
+    private String idempotencyKey = null;
+
+    private RestRetryPolicy retryPolicy = new RestRetryPolicy();
+
+    private static volatile RestTransport defaultTransport = new UrlConnectionTransport();
+
+    private RestTransport transport = null;
+
+    private ResponseProcessor responseProcessor = null;
+
+    private RestResponseDecoder responseDecoder = null;
+
+    private static volatile RestMetricsListener defaultMetricsListener = null;
+
+    private RestMetricsListener metricsListener = null;
+
+    private Map<String, String> headers;
+
+    private boolean keepGzippedBody = false;
+
+    /**
+     * Turns a successful response into the object handed to the handler. Runs on the worker
+     * thread, right after the body has been read.
+     */
+    public interface ResponseProcessor {
+        /**
+         * @param data the body as a String, or whatever the {@link RestResponseDecoder} made of it,
+         *             empty for a 304 Not Modified
+         * @param statusCode the status code, 304 when a conditional request found nothing changed
+         * @param headers the response's caching headers, names in lower case
+         * @param gzipped the body exactly as it was received, if it came gzipped and
+         *                {@link #setKeepGzippedBody} asked for it, otherwise null
+         */
+        Object process(Object data, int statusCode, Map<String, String> headers, byte[] gzipped) throws Exception;
+    }
+
     public RestRequest() {
-        this.executorService = Executors.newFixedThreadPool(2);
+        this(RestDispatcher.getInstance());
+    }
+
+    public RestRequest(RestDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * A request set up like the given one, credentials, transport and all, that runs on another
+     * dispatcher. The handler and per-call settings aren't copied.
+     */
+    RestRequest(RestRequest other, RestDispatcher dispatcher) {
+        this(dispatcher);
+
+        this.username = other.username;
+        this.password = other.password;
+        this.acceptAllSslCertificates = other.acceptAllSslCertificates;
+        this.userAgent = other.userAgent;
+        this.contentType = other.contentType;
+        this.retryPolicy = other.retryPolicy;
+        this.transport = other.transport;
+        this.responseDecoder = other.responseDecoder;
+        this.metricsListener = other.metricsListener;
     }
 
     public void setContentType(String type) {
@@ -72,11 +149,78 @@ public class RestRequest {
         this.data = data;
     }
 
+    public void setStreamData(Map<String, RestStreamBody> streamData) {
+        this.streamData = streamData;
+    }
+
+    /**
+     * Extra headers for the next requests, e.g. If-None-Match to revalidate a cached response.
+     * A 304 answer to a request with If-None-Match or If-Modified-Since counts as a success.
+     */
+    public void setHeaders(Map<String, String> headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Keeps a copy of gzipped response bodies as they came off the wire for the
+     * {@link ResponseProcessor}, e.g. to cache them without compressing them again.
+     */
+    public void setKeepGzippedBody(boolean keep) {
+        this.keepGzippedBody = keep;
+    }
+
     public void setUserAgent(String agent) {
         this.userAgent = agent;
     }
 
-    public void get(String url) throws IOException {
+    /**
+     * Sent as the Idempotency-Key header of the next requests, so the server can recognise
+     * retries of the same submission. POST requests are only retried when they have one.
+     */
+    public void setIdempotencyKey(String key) {
+        this.idempotencyKey = key;
+    }
+
+    /**
+     * Sets the transport used by every request that doesn't have its own, e.g. to run the whole
+     * SDK against a {@link LoopbackTransport}.
+     */
+    public static void setDefaultTransport(RestTransport transport) {
+        RestRequest.defaultTransport = transport != null ? transport : new UrlConnectionTransport();
+    }
+
+    public void setTransport(RestTransport transport) {
+        this.transport = transport;
+    }
+
+    public void setResponseProcessor(ResponseProcessor responseProcessor) {
+        this.responseProcessor = responseProcessor;
+    }
+
+    /**
+     * Switches successful responses to streaming decoding, see {@link RestResponseDecoder}.
+     */
+    public void setResponseDecoder(RestResponseDecoder responseDecoder) {
+        this.responseDecoder = responseDecoder;
+    }
+
+    public void setRetryPolicy(RestRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy != null ? retryPolicy : RestRetryPolicy.NONE;
+    }
+
+    /**
+     * Sets the listener told about every request that doesn't have its own, e.g. a
+     * {@link RestMetricsAggregator}.
+     */
+    public static void setDefaultMetricsListener(RestMetricsListener listener) {
+        RestRequest.defaultMetricsListener = listener;
+    }
+
+    public void setMetricsListener(RestMetricsListener listener) {
+        this.metricsListener = listener;
+    }
+
+    public RestCall get(String url) throws IOException {
         if (this.data.size() > 0) {
             // if we don't already have some query string parameters, add a ?
             if (!url.contains("?")) {
@@ -90,83 +234,112 @@ public class RestRequest {
                 try {
                     urlBuilder.append(URLEncoder.encode(key, "utf-8")).append("=").append(URLEncoder.encode(this.data.get(key), "utf-8")).append("&");
                 } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
+                    RestLog.e(TAG, "Couldn't encode query parameter " + key, e);
                 }
             }
             url = urlBuilder.toString();
             url = url.substring(0, url.length() - 1);
         }
 
-        HttpsURLConnection httpURLConnection = (HttpsURLConnection) (new URL(url)).openConnection();
-        httpURLConnection.setRequestMethod("GET");
+        return this.prepareRequest("GET", new URL(url));
+    }
 
-        this.prepareRequest(httpURLConnection);
+    public RestCall post(String url) throws IOException {
+        return this.prepareRequest("POST", new URL(url));
     }
 
-    public void post(String url) throws IOException {
-        HttpsURLConnection httpURLConnection = (HttpsURLConnection) (new URL(url)).openConnection();
-        httpURLConnection.setRequestMethod("POST");
-        httpURLConnection.setDoOutput(true);
+    public RestCall put(String url) throws IOException {
+        return this.prepareRequest("PUT", new URL(url));
+    }
 
-        this.prepareRequest(httpURLConnection);
+    public RestCall delete(String url) throws IOException {
+        return this.prepareRequest("DELETE", new URL(url));
     }
 
-    public void put(String url) throws IOException {
-        HttpsURLConnection httpURLConnection = (HttpsURLConnection) (new URL(url)).openConnection();
-        httpURLConnection.setRequestMethod("PUT");
-        httpURLConnection.setDoOutput(true);
+    protected byte[] prepareData(Map<String, String> fields) {
+        BodyEncoder encoder = this.contentType != null && this.contentType.equalsIgnoreCase(JSON_ENCODER.getContentType()) ? JSON_ENCODER : FORM_ENCODER;
 
-        this.prepareRequest(httpURLConnection);
-    }
+        try {
+            final String data = encoder.encode(fields);
 
-    public void delete(String url) throws IOException {
-        HttpsURLConnection httpURLConnection = (HttpsURLConnection) (new URL(url)).openConnection();
-        httpURLConnection.setRequestMethod("DELETE");
+            RestLog.d(TAG, () -> "Sending: " + RestLog.payload(data));
 
-        this.prepareRequest(httpURLConnection);
+            return data.getBytes("utf-8");
+        } catch (IOException e) {
+            RestLog.e(TAG, "Couldn't encode request data", e);
+            return null;
+        }
     }
 
-    protected byte[] prepareData() {
-        if (this.contentType != null && this.contentType.equalsIgnoreCase("application/json")) {
-            JSONObject data = new JSONObject();
-            try {
-                for (String key : this.data.keySet()) {
-                    data.put(key, this.data.get(key));
+    /**
+     * Sends the data as multipart/form-data, streaming each {@link RestStreamBody} straight into
+     * the connection. The total length isn't known up front, so the body goes out in chunks.
+     */
+    private void writeMultipart(Call call, RestTransport.Exchange request) throws IOException {
+        Map<String, String> fields = call.data;
+        Map<String, RestStreamBody> streams = call.streamBodies;
+
+        String boundary = "----DoorbellBoundary" + UUID.randomUUID().toString().replace("-", "");
+
+        request.setRequestProperty("Content-type", "multipart/form-data; boundary=" + boundary);
+        request.setChunkedStreamingMode(0);
+
+        CountingOutputStream body = new CountingOutputStream(request.getOutputStream());
+        try (OutputStream os = new BufferedOutputStream(body)) {
+            if (fields != null) {
+                for (String key : fields.keySet()) {
+                    this.writePartHeader(os, boundary, key);
+                    os.write(fields.get(key).getBytes("utf-8"));
+                    os.write(CRLF);
                 }
-
-                Log.d("RestRequestSending", data.toString());
-
-                return data.toString().getBytes("utf-8");
-            } catch (JSONException e) {
-                e.printStackTrace();
-                return null;
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-                return null;
             }
-        } else {
-            try {
-                StringBuilder data = new StringBuilder();
 
-                for (String key : this.data.keySet()) {
-                    data.append(URLEncoder.encode(key, "utf-8")).append("=").append(URLEncoder.encode(this.data.get(key), "utf-8")).append("&");
+            // The bodies get a stream they can close, without closing the connection's one
+            OutputStream partStream = new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
                 }
 
-                // get rid of the last ampersand
-                if (data.length() > 0) {
-                    data.substring(0, data.length() - 1);
+                @Override
+                public void close() throws IOException {
+                    this.flush();
                 }
+            };
 
-                return data.toString().getBytes("utf-8");
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-                return null;
+            for (String key : streams.keySet()) {
+                this.writePartHeader(os, boundary, key);
+                streams.get(key).writeTo(partStream);
+                os.write(CRLF);
             }
+
+            os.write(("--" + boundary + "--").getBytes("utf-8"));
+            os.write(CRLF);
+        } finally {
+            call.metrics.bytesSent += body.count;
         }
     }
 
-    private void prepareRequest(HttpsURLConnection request) {
-        request.setDoInput(true);
+    private void writePartHeader(OutputStream os, String boundary, String name) throws IOException {
+        String header = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name.replace("\"", "%22") + "\"\r\n"
+                + "\r\n";
+        os.write(header.getBytes("utf-8"));
+    }
+
+    private RestCall prepareRequest(String method, URL url) {
+        Call call = new Call(method, url);
+        this.dispatcher.enqueue(call);
+        return call;
+    }
+
+    public void cancelRequest() {
+        this.dispatcher.cancelAll(this);
+    }
+
+    private RestTransport.Exchange openConnection(Call call) throws IOException {
+        RestTransport transport = this.transport != null ? this.transport : RestRequest.defaultTransport;
+        RestTransport.Exchange request = transport.open(call.method, call.url);
 
         if (this.contentType != null) {
             request.setRequestProperty("Content-type", this.contentType);
@@ -174,26 +347,139 @@ public class RestRequest {
 
         request.setRequestProperty("Accept", "application/json");
 
-        if (this.executorService.isShutdown()) {
-            this.executorService = Executors.newFixedThreadPool(2);
+        if (call.idempotencyKey != null) {
+            request.setRequestProperty("Idempotency-Key", call.idempotencyKey);
         }
 
-        this.executorService.execute(() -> {
-            Bundle b = RestRequest.this.executeRequest(request);
+        if (call.requestHeaders != null) {
+            for (Map.Entry<String, String> header : call.requestHeaders.entrySet()) {
+                request.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
 
-            Message m = new Message();
-            m.setData(b);
-            m.setTarget(RestRequest.this.handler);
-            m.sendToTarget();
-        });
+        return request;
     }
 
-    public void cancelRequest() {
-        this.executorService.shutdownNow();
+    /**
+     * Encodes the call's body, on its first attempt, for every attempt to send as is. Stream
+     * bodies of a call that may be retried are written to temporary files, so they're only
+     * produced once, without keeping them in memory.
+     *
+     * @return false if the body can't be encoded
+     */
+    private boolean prepareBody(Call call, boolean retryable) {
+        if (call.prepared || !(call.method.equals("POST") || call.method.equals("PUT"))) {
+            return true;
+        }
+        call.prepared = true;
+
+        if (call.streamData == null || call.streamData.isEmpty()) {
+            call.body = this.prepareData(call.data);
+            return call.body != null;
+        }
+
+        call.streamBodies = call.streamData;
+        if (retryable && call.retryPolicy.getMaxAttempts() > 1) {
+            try {
+                call.streamBodies = RestRequest.spool(call);
+            } catch (IOException e) {
+                // Produced again for every attempt instead
+                RestLog.w(TAG, "Couldn't spool the request body", e);
+                call.releaseSpool();
+            }
+        }
+
+        return true;
+    }
+
+    private static Map<String, RestStreamBody> spool(Call call) throws IOException {
+        Map<String, RestStreamBody> spooled = new LinkedHashMap<>();
+
+        for (Map.Entry<String, RestStreamBody> part : call.streamData.entrySet()) {
+            final File file = File.createTempFile("doorbell-upload", null);
+            call.spooledFiles.add(file);
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                part.getValue().writeTo(out);
+            }
+
+            spooled.put(part.getKey(), new RestStreamBody() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    try (InputStream in = new FileInputStream(file)) {
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                }
+            });
+        }
+
+        return spooled;
+    }
+
+    /**
+     * Makes the call's next attempt.
+     *
+     * @return the outcome, or null when the call backs off and tries again, see
+     * {@link RestDispatcher.AsyncCall#retryAfter}
+     */
+    private Bundle executeAttempt(Call call) {
+        boolean retryable = call.retryPolicy.isRetryable(call.method, call.idempotencyKey != null);
+        int attempt = call.attempt;
+
+        if (!this.prepareBody(call, retryable)) {
+            // Encoding it again won't help
+            Bundle b = new Bundle();
+            b.putString("error", "Couldn't encode the request data");
+            return b;
+        }
+
+        call.metrics.retryCount = attempt - 1;
+        call.metrics.connectNanos = call.metrics.elapsed();
+        call.metrics.firstByteNanos = -1;
+        call.metrics.bodyEndNanos = -1;
+        call.metrics.statusCode = -1;
+
+        RestLog.d(TAG, () -> "--> " + call.method + " " + RestLog.payload(call.url.toString()) + (attempt > 1 ? " (attempt " + attempt + ")" : ""));
+
+        Bundle b;
+        try {
+            RestTransport.Exchange request = this.openConnection(call);
+            call.connection = request;
+
+            if (call.isCanceled()) {
+                return new Bundle();
+            }
+
+            b = this.executeRequest(call, request);
+        } catch (IOException e) {
+            RestLog.w(TAG, () -> call.method + " " + RestLog.payload(call.url.toString()) + " failed", e);
+            b = new Bundle();
+            b.putString("error", e.getMessage());
+        }
+
+        int statusCode = b.containsKey("error") ? -1 : b.getInt("statusCodeErrorNumber");
+        if (b.containsKey("data") || call.isCanceled() || !retryable || !call.retryPolicy.shouldRetry(attempt, statusCode)) {
+            return b;
+        }
+
+        long delay = call.retryPolicy.backoff(attempt);
+        if (b.containsKey("retryAfter")) {
+            delay = Math.max(delay, b.getLong("retryAfter"));
+        }
+
+        // Without holding on to a place in the dispatcher while waiting
+        call.attempt++;
+        call.retryAfter(delay);
+        return null;
     }
 
-    private Bundle executeRequest(HttpsURLConnection request) {
+    private Bundle executeRequest(Call call, RestTransport.Exchange request) {
         Bundle b = new Bundle();
+        final long start = System.currentTimeMillis();
 
         try {
             if (this.userAgent != null) {
@@ -209,74 +495,365 @@ public class RestRequest {
             }
             request.addRequestProperty("Accept-Encoding", "gzip");
 
-            if (request.getRequestMethod().equalsIgnoreCase("POST") || request.getRequestMethod().equalsIgnoreCase("PUT")) {
-                byte[] input = this.prepareData();
-                if (input.length > 0) {
-                    try (OutputStream os = request.getOutputStream()) {
-                        os.write(input, 0, input.length);
-                    }
+            if (call.streamBodies != null) {
+                this.writeMultipart(call, request);
+            } else if (call.body != null && call.body.length > 0) {
+                try (OutputStream os = request.getOutputStream()) {
+                    os.write(call.body, 0, call.body.length);
                 }
+                call.metrics.bytesSent += call.body.length;
             }
 
-            int statusCode = request.getResponseCode();
+            final int statusCode = request.getResponseCode();
+            call.metrics.firstByteNanos = call.metrics.elapsed();
+            call.metrics.statusCode = statusCode;
+            RestLog.d(TAG, () -> "<-- " + statusCode + " " + call.method + " " + RestLog.payload(call.url.toString()) + " (" + (System.currentTimeMillis() - start) + "ms)");
 
-            InputStream responseInputStream;
-            if (request.getResponseCode() >= 200 && request.getResponseCode() < 300) {
-                responseInputStream = request.getInputStream();
-            } else {
-                responseInputStream = request.getErrorStream();
+            boolean notModified = statusCode == 304 && call.isConditional();
+            boolean successful = (statusCode >= 200 && statusCode < 300) || notModified;
+
+            for (String name : CacheEntry.HEADERS) {
+                String value = request.getHeaderField(name);
+                if (value != null) {
+                    call.responseHeaders.put(name, value);
+                }
             }
 
-            StringBuilder responseDataBuilder;
-            String responseData;
-            String contentEncoding = request.getHeaderField("Content-Encoding");
-            if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-                GZIPInputStream gzipInputStream = new GZIPInputStream(responseInputStream);
+            InputStream responseInputStream = notModified ? null : successful ? request.getInputStream() : request.getErrorStream();
+            if (responseInputStream == null) {
+                responseInputStream = new ByteArrayInputStream(new byte[0]);
+            }
 
-                InputStreamReader reader = new InputStreamReader(gzipInputStream);
-                BufferedReader in = new BufferedReader(reader);
+            String charset = RestRequest.charset(request.getHeaderField("Content-Type"));
 
-                String line;
-                responseDataBuilder = new StringBuilder();
-                while ((line = in.readLine()) != null) {
-                    responseDataBuilder.append(line);
-                }
+            String contentEncoding = request.getHeaderField("Content-Encoding");
+            boolean gzipped = contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip");
 
-                in.close();
-                reader.close();
-                gzipInputStream.close();
-            } else {
-                InputStreamReader reader = new InputStreamReader(responseInputStream);
-                BufferedReader in = new BufferedReader(reader);
+            call.gzipped = null;
+            if (gzipped && successful && !notModified && call.keepGzippedBody && charset.equalsIgnoreCase("utf-8")) {
+                call.gzipped = new ByteArrayOutputStream();
+                responseInputStream = new TeeInputStream(responseInputStream, call.gzipped);
+            }
 
-                String line;
-                responseDataBuilder = new StringBuilder();
-                while ((line = in.readLine()) != null) {
-                    responseDataBuilder.append(line);
-                }
+            CountingInputStream received = new CountingInputStream(responseInputStream);
+            CountingInputStream uncompressed = received;
 
-                in.close();
-                reader.close();
+            if (gzipped) {
+                uncompressed = new CountingInputStream(new GZIPInputStream(received));
             }
+            responseInputStream = uncompressed;
 
-            responseData = responseDataBuilder.toString();
-
-            Log.d("RestRequest", "ResponseData: "+responseData);
+            String responseData;
+            try (InputStream in = responseInputStream) {
+                if (successful && !notModified && call.responseDecoder != null) {
+                    call.decoded = call.responseDecoder.decode(in, charset);
+                    responseData = null;
+
+                    // Read whatever the decoder left, so the connection can be reused
+                    RestRequest.drain(in);
+                } else {
+                    responseData = RestRequest.readString(in, charset);
+
+                    final String logged = responseData;
+                    RestLog.d(TAG, () -> "ResponseData: " + RestLog.payload(logged));
+                }
 
-            responseInputStream.close();
+                if (call.gzipped != null) {
+                    // Anything after the gzip trailer, so the copy is complete
+                    RestRequest.drain(received);
+                }
+            } finally {
+                call.metrics.bodyEndNanos = call.metrics.elapsed();
+                call.metrics.bytesReceived += received.count;
+                call.metrics.bytesReceivedUncompressed += uncompressed.count;
+            }
 
-            if (statusCode >= 200 && statusCode < 300) {
+            if (successful) {
                 b.putString("data", responseData);
             } else {
                 b.putString("statusCodeError", responseData);
                 b.putInt("statusCodeErrorNumber", statusCode);
+
+                String retryAfter = request.getHeaderField("Retry-After");
+                if (retryAfter != null) {
+                    try {
+                        b.putLong("retryAfter", Long.parseLong(retryAfter.trim()) * 1000);
+                    } catch (NumberFormatException e) {
+                        // an HTTP date, just use our own backoff
+                    }
+                }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            RestLog.w(TAG, () -> call.method + " " + RestLog.payload(call.url.toString()) + " failed", e);
             b.putString("error", e.getMessage());
         }
 
         return b;
     }
 
+    private static String charset(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return parameter.substring(8).replace("\"", "").trim();
+                }
+            }
+        }
+
+        return "utf-8";
+    }
+
+    private static String readString(InputStream in, String charset) throws IOException {
+        // Read in blocks rather than lines, so line breaks inside the body are kept
+        Reader reader = new InputStreamReader(in, charset);
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, read);
+        }
+        return builder.toString();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = this.in.read();
+            if (b != -1) {
+                this.copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.in.read(b, off, len);
+            if (read > 0) {
+                this.copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Read rather than skip, so the copy is complete
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            int read = this.read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = this.in.read();
+            if (b != -1) {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.in.read(b, off, len);
+            if (read > 0) {
+                this.count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = this.in.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * One get/post/put/delete, with a snapshot of the data it was made with.
+     */
+    private class Call extends RestDispatcher.AsyncCall {
+        final String method;
+        final URL url;
+        final Map<String, String> data;
+        final Map<String, RestStreamBody> streamData;
+        final String idempotencyKey;
+        final RestRetryPolicy retryPolicy;
+        final ResponseProcessor responseProcessor;
+        final RestResponseDecoder responseDecoder;
+        final Map<String, String> requestHeaders;
+        final boolean keepGzippedBody;
+        final Map<String, String> responseHeaders = new HashMap<>();
+
+        final RestCallMetrics metrics;
+        final RestMetricsListener metricsListener;
+
+        Object decoded;
+        ByteArrayOutputStream gzipped;
+
+        // The body, prepared by the first attempt for all of them, see prepareBody()
+        boolean prepared = false;
+        byte[] body;
+        Map<String, RestStreamBody> streamBodies;
+        final List<File> spooledFiles = new ArrayList<>();
+
+        // Starting at 1, and only touched by the attempt running
+        int attempt = 1;
+
+        volatile RestTransport.Exchange connection;
+
+        Call(String method, URL url) {
+            super(RestRequest.this, url.getHost());
+
+            this.method = method;
+            this.url = url;
+            this.data = RestRequest.this.data;
+            this.streamData = RestRequest.this.streamData;
+            this.idempotencyKey = RestRequest.this.idempotencyKey;
+            this.retryPolicy = RestRequest.this.retryPolicy;
+            this.responseProcessor = RestRequest.this.responseProcessor;
+            this.responseDecoder = RestRequest.this.responseDecoder;
+            this.requestHeaders = RestRequest.this.headers;
+            this.keepGzippedBody = RestRequest.this.keepGzippedBody;
+
+            this.metrics = new RestCallMetrics(method, url);
+            this.metrics.conditional = this.isConditional();
+            this.metricsListener = RestRequest.this.metricsListener != null ? RestRequest.this.metricsListener : RestRequest.defaultMetricsListener;
+        }
+
+        boolean isConditional() {
+            if (this.requestHeaders == null) {
+                return false;
+            }
+
+            for (String name : this.requestHeaders.keySet()) {
+                if (name.equalsIgnoreCase("If-None-Match") || name.equalsIgnoreCase("If-Modified-Since")) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        protected void execute() {
+            if (this.metrics.dispatchNanos < 0) {
+                this.metrics.dispatchNanos = this.metrics.elapsed();
+            }
+
+            Bundle b = RestRequest.this.executeAttempt(this);
+            if (b == null) {
+                // Backing off, run again later
+                return;
+            }
+
+            this.releaseSpool();
+
+            this.metrics.endNanos = this.metrics.elapsed();
+            this.metrics.canceled = this.isCanceled();
+            this.reportMetrics();
+
+            if (this.isCanceled()) {
+                return;
+            }
+
+            Message m = new Message();
+
+            if (b.containsKey("data") && this.responseProcessor != null) {
+                try {
+                    Object data = this.responseDecoder != null && this.metrics.statusCode != 304 ? this.decoded : b.getString("data");
+                    byte[] gzipped = this.gzipped != null ? this.gzipped.toByteArray() : null;
+                    m.obj = this.responseProcessor.process(data, this.metrics.statusCode, this.responseHeaders, gzipped);
+                } catch (Exception e) {
+                    RestLog.w(TAG, "Couldn't process the response", e);
+                    m.obj = e;
+                }
+
+                // Only the processed result goes to the main thread
+                b.putString("data", null);
+            }
+
+            m.setData(b);
+            m.setTarget(RestRequest.this.handler);
+            m.sendToTarget();
+        }
+
+        private void reportMetrics() {
+            if (this.metricsListener == null) {
+                return;
+            }
+
+            try {
+                this.metricsListener.callFinished(this.metrics);
+            } catch (RuntimeException e) {
+                RestLog.w(TAG, "Metrics listener failed", e);
+            }
+        }
+
+        void releaseSpool() {
+            for (File file : this.spooledFiles) {
+                file.delete();
+            }
+            this.spooledFiles.clear();
+        }
+
+        @Override
+        protected void onDropped() {
+            this.releaseSpool();
+            this.metrics.endNanos = this.metrics.elapsed();
+            this.metrics.canceled = true;
+            this.reportMetrics();
+        }
+
+        @Override
+        protected void onCancel() {
+            RestTransport.Exchange connection = this.connection;
+            if (connection != null) {
+                // Closes the socket, so a blocked write or read fails right away
+                connection.disconnect();
+            }
+        }
+    }
 }
@@ -0,0 +1,12 @@
+package io.doorbell.android.manavo.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a successful response straight from the network stream (already un-gzipped), on the
+ * worker thread, without ever holding the whole body as a String.
+ */
+public interface RestResponseDecoder {
+    Object decode(InputStream in, String charset) throws IOException;
+}
@@ -0,0 +1,90 @@
+package io.doorbell.android.manavo.rest;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether a failed attempt is tried again, and how long to wait before doing so.
+ *
+ * Delays grow exponentially from the initial backoff up to the maximum, and a random part of
+ * each delay (the jitter) is dropped so clients that failed together don't retry together.
+ * POST requests are only retried when they carry an idempotency key.
+ */
+public class RestRetryPolicy {
+
+    public static final RestRetryPolicy NONE = new RestRetryPolicy().setMaxAttempts(1);
+
+    private int maxAttempts = 3;
+    private long initialBackoff = 500;
+    private long maxBackoff = 10000;
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private Set<Integer> retryOnStatus = new HashSet<>();
+
+    private final Random random = new Random();
+
+    public RestRetryPolicy() {
+        this.retryOnStatus.add(408);
+        this.retryOnStatus.add(429);
+        this.retryOnStatus.add(500);
+        this.retryOnStatus.add(502);
+        this.retryOnStatus.add(503);
+        this.retryOnStatus.add(504);
+    }
+
+    public RestRetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1: " + maxAttempts);
+        }
+
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    public RestRetryPolicy setBackoff(long initialBackoff, long maxBackoff, double multiplier) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * @param jitter the fraction (0 to 1) of each delay that is randomised
+     */
+    public RestRetryPolicy setJitter(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+        return this;
+    }
+
+    public RestRetryPolicy setRetryOnStatus(Set<Integer> statusCodes) {
+        this.retryOnStatus = new HashSet<>(statusCodes);
+        return this;
+    }
+
+    public boolean isRetryable(String method, boolean idempotent) {
+        return !method.equalsIgnoreCase("POST") || idempotent;
+    }
+
+    public boolean shouldRetry(int attempt, int statusCode) {
+        return attempt < this.maxAttempts && (statusCode < 0 || this.retryOnStatus.contains(statusCode));
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1
+     */
+    public long backoff(int attempt) {
+        double delay = this.initialBackoff * Math.pow(this.multiplier, attempt - 1);
+        delay = Math.min(delay, this.maxBackoff);
+
+        synchronized (this.random) {
+            delay -= delay * this.jitter * this.random.nextDouble();
+        }
+
+        return (long) delay;
+    }
+}
@@ -0,0 +1,8 @@
+package io.doorbell.android.manavo.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface RestStreamBody {
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,43 @@
+package io.doorbell.android.manavo.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * What {@link RestRequest} uses to actually talk to a server.
+ */
+public interface RestTransport {
+
+    Exchange open(String method, URL url) throws IOException;
+
+    /**
+     * One request/response pair, used the same way as an HttpURLConnection: headers first, then
+     * the body, then the response.
+     */
+    interface Exchange {
+        void setRequestProperty(String name, String value);
+
+        void addRequestProperty(String name, String value);
+
+        void setChunkedStreamingMode(int chunkLength);
+
+        void setFixedLengthStreamingMode(int contentLength);
+
+        OutputStream getOutputStream() throws IOException;
+
+        int getResponseCode() throws IOException;
+
+        String getHeaderField(String name);
+
+        InputStream getInputStream() throws IOException;
+
+        InputStream getErrorStream();
+
+        /**
+         * Aborts the exchange, can be called from any thread.
+         */
+        void disconnect();
+    }
+}
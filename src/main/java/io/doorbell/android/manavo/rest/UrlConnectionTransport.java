@@ -0,0 +1,84 @@
+package io.doorbell.android.manavo.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The default transport, on top of the platform's HttpURLConnection.
+ */
+public class UrlConnectionTransport implements RestTransport {
+
+    @Override
+    public Exchange open(String method, URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setDoInput(true);
+
+        if (method.equals("POST") || method.equals("PUT")) {
+            connection.setDoOutput(true);
+        }
+
+        return new UrlConnectionExchange(connection);
+    }
+
+    private static class UrlConnectionExchange implements Exchange {
+        private final HttpURLConnection connection;
+
+        UrlConnectionExchange(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void setRequestProperty(String name, String value) {
+            this.connection.setRequestProperty(name, value);
+        }
+
+        @Override
+        public void addRequestProperty(String name, String value) {
+            this.connection.addRequestProperty(name, value);
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunkLength) {
+            this.connection.setChunkedStreamingMode(chunkLength);
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(int contentLength) {
+            this.connection.setFixedLengthStreamingMode(contentLength);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return this.connection.getOutputStream();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return this.connection.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return this.connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return this.connection.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return this.connection.getErrorStream();
+        }
+
+        @Override
+        public void disconnect() {
+            this.connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.doorbell.android.outbox;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import io.doorbell.android.DoorbellApi;
+import io.doorbell.android.manavo.rest.RestLog;
+import io.doorbell.android.manavo.rest.RestRequest;
+import io.doorbell.android.manavo.rest.RestStreamBody;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers outbox entries through the Doorbell.io API, one after the other.
+ *
+ * It's kept by the process-wide {@link Outbox}, so it makes its requests directly rather than
+ * through a {@link DoorbellApi}, and holds on to no Activity.
+ */
+public class DoorbellOutboxSender implements Outbox.Sender {
+
+    private static final String TAG = "Outbox";
+
+    @Override
+    public void send(List<Outbox.Entry> entries, Callback callback) {
+        this.sendFrom(entries, 0, callback);
+    }
+
+    private void sendFrom(final List<Outbox.Entry> entries, final int index, final Callback outboxCallback) {
+        if (index >= entries.size()) {
+            outboxCallback.done(entries.size());
+            return;
+        }
+
+        Outbox.Entry first = entries.get(index);
+        final int end = index + 1;
+
+        Map<String, RestStreamBody> streamParameters = new LinkedHashMap<>();
+        for (String name : first.files.keySet()) {
+            streamParameters.put(name, first.fileBody(name));
+        }
+
+        RestRequest rest = new RestRequest();
+        rest.setUserAgent(DoorbellApi.DOORBELL_USER_AGENT);
+        rest.setData(new LinkedHashMap<>(first.parameters));
+        rest.setStreamData(streamParameters);
+        rest.setIdempotencyKey(first.idempotencyKey);
+        rest.setHandler(new Handler(Looper.getMainLooper(), (Message msg) -> {
+            Bundle b = msg.getData();
+
+            if (b.containsKey("data")) {
+                DoorbellOutboxSender.this.sendFrom(entries, end, outboxCallback);
+            } else if (b.containsKey("statusCodeErrorNumber")) {
+                int code = b.getInt("statusCodeErrorNumber");
+                if (code >= 400 && code < 500 && code != 408 && code != 429) {
+                    // The server won't ever accept these, drop them instead of blocking the outbox
+                    RestLog.w(TAG, "Dropping a submission the server rejected with " + code);
+                    DoorbellOutboxSender.this.sendFrom(entries, end, outboxCallback);
+                } else {
+                    outboxCallback.done(index);
+                }
+            } else {
+                outboxCallback.done(index);
+            }
+
+            return true;
+        }));
+
+        try {
+            rest.post(DoorbellApi.DOORBELL_IO_URL + first.path);
+        } catch (IOException e) {
+            RestLog.w(TAG, "Couldn't resend a submission", e);
+            outboxCallback.done(index);
+        }
+    }
+}
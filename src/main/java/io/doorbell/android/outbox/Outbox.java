@@ -0,0 +1,386 @@
+package io.doorbell.android.outbox;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import io.doorbell.android.manavo.rest.RestLog;
+import io.doorbell.android.manavo.rest.RestStreamBody;
+import io.doorbell.core.outbox.OutboxLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent queue of submissions that couldn't be sent.
+ *
+ * Entries are appended, one JSON object per line, to an {@link OutboxLog} in the app's private
+ * storage, which records how far it has been delivered. Streamed parameters, like screenshots,
+ * are written to their own files next to the log.
+ *
+ * Every entry is sent with an idempotency key, the submission's own or else the entry's id, so a
+ * resend of an entry that went out but wasn't acknowledged, e.g. because the app was killed in
+ * between, carries the same key. Only the endpoints that honour the key drop such a duplicate,
+ * the others (open, impression and event) may count it twice.
+ *
+ * All of the file I/O, screenshots included, happens on a thread of the outbox's own, one task at
+ * a time in the order queued. Senders are called on the main thread.
+ */
+public class Outbox {
+
+    private static final String TAG = "Outbox";
+
+    private static final String DIRECTORY = "doorbell_outbox";
+
+    private static final int DRAIN_BATCH_SIZE = 20;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // After failing to send while online, try again after this long, doubling up to the maximum
+    private static final long INITIAL_RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 15 * 60 * 1000;
+
+    private static Outbox instance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final OutboxLog mLog;
+
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler;
+
+    private Sender mSender = null;
+    private BroadcastReceiver mConnectivityReceiver = null;
+
+    // Only touched on the outbox thread
+    private boolean mDraining = false;
+    private boolean mRetryScheduled = false;
+    private long mRetryDelay = INITIAL_RETRY_DELAY;
+
+    public interface Sender {
+        /**
+         * Sends the entries in order, and reports how many of them (from the start) were delivered.
+         */
+        void send(List<Entry> entries, Callback callback);
+
+        interface Callback {
+            void done(int delivered);
+        }
+    }
+
+    public static class Entry {
+        public final String id;
+        public final String path;
+        public final Map<String, String> parameters;
+        public final Map<String, File> files;
+        public final String idempotencyKey;
+
+        private long end;
+
+        Entry(String id, String path, Map<String, String> parameters, Map<String, File> files, String idempotencyKey) {
+            this.id = id;
+            this.path = path;
+            this.parameters = parameters;
+            this.files = files;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        public RestStreamBody fileBody(final String name) {
+            return new RestStreamBody() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    try (InputStream in = new FileInputStream(Entry.this.files.get(name))) {
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    public static synchronized Outbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new Outbox(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private Outbox(Context context) {
+        this.mContext = context;
+        this.mDirectory = new File(context.getFilesDir(), DIRECTORY);
+        this.mLog = new OutboxLog(this.mDirectory);
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "Doorbell Outbox");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // Nothing to keep a thread around for once the outbox is idle
+        executor.allowCoreThreadTimeOut(true);
+        this.mExecutor = executor;
+    }
+
+    @SuppressWarnings("deprecation")
+    public boolean isOnline() {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) this.mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Network network = cm.getActiveNetwork();
+                NetworkCapabilities capabilities = network != null ? cm.getNetworkCapabilities(network) : null;
+                return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+            }
+
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            return info != null && info.isConnected();
+        } catch (Exception e) {
+            // Without access to the network state, just try
+            return true;
+        }
+    }
+
+    /**
+     * Queues writing the submission to the outbox, which then sends it once it can: when
+     * connectivity comes back, or after a backoff if the network looks fine and the submission
+     * failed anyway. The stream parameters are written out on the outbox thread, so they have to
+     * stay usable until then.
+     */
+    public void add(String path, Map<String, String> parameters, Map<String, RestStreamBody> streamParameters, String idempotencyKey) {
+        // The caller is free to reuse its maps as soon as this returns
+        final Map<String, String> parametersCopy = new LinkedHashMap<>(parameters);
+        final Map<String, RestStreamBody> streamParametersCopy = streamParameters != null ? new LinkedHashMap<>(streamParameters) : null;
+
+        this.execute(() -> {
+            Outbox.this.write(path, parametersCopy, streamParametersCopy, idempotencyKey);
+
+            if (Outbox.this.isOnline()) {
+                // No connectivity change to wait for
+                Outbox.this.scheduleRetry();
+            }
+        });
+    }
+
+    private void write(String path, Map<String, String> parameters, Map<String, RestStreamBody> streamParameters, String idempotencyKey) {
+        if (!this.mDirectory.exists() && !this.mDirectory.mkdirs()) {
+            RestLog.e(TAG, "Couldn't create the outbox");
+            return;
+        }
+
+        String id = UUID.randomUUID().toString();
+
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put("id", id);
+            entry.put("path", path);
+            entry.put("idempotency_key", idempotencyKey != null ? idempotencyKey : id);
+            entry.put("parameters", new JSONObject(parameters));
+
+            JSONObject files = new JSONObject();
+            if (streamParameters != null) {
+                int i = 0;
+                for (String name : streamParameters.keySet()) {
+                    File file = new File(this.mDirectory, id + "-" + i++);
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        streamParameters.get(name).writeTo(out);
+                    }
+                    files.put(name, file.getName());
+                }
+            }
+            entry.put("files", files);
+
+            this.mLog.append(entry.toString());
+        } catch (IOException | JSONException e) {
+            RestLog.e(TAG, "Couldn't queue the submission", e);
+        }
+    }
+
+    /**
+     * Drains the outbox with the given sender now, and again every time connectivity comes back.
+     */
+    public void startDraining(Sender sender) {
+        synchronized (this) {
+            this.mSender = sender;
+
+            if (this.mConnectivityReceiver == null) {
+                this.mConnectivityReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        Outbox.this.drain();
+                    }
+                };
+
+                this.mContext.registerReceiver(this.mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+        }
+
+        this.drain();
+    }
+
+    public synchronized void stopDraining(Sender sender) {
+        if (this.mSender != sender) {
+            return;
+        }
+
+        this.mSender = null;
+
+        if (this.mConnectivityReceiver != null) {
+            this.mContext.unregisterReceiver(this.mConnectivityReceiver);
+            this.mConnectivityReceiver = null;
+        }
+    }
+
+    /**
+     * Queues sending what's in the outbox, if there's a sender and a network.
+     */
+    public void drain() {
+        this.execute(() -> {
+            final Sender sender;
+            synchronized (Outbox.this) {
+                sender = Outbox.this.mSender;
+            }
+
+            if (Outbox.this.mDraining || sender == null || !Outbox.this.isOnline()) {
+                return;
+            }
+
+            final List<Entry> entries = Outbox.this.readPending(DRAIN_BATCH_SIZE);
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            Outbox.this.mDraining = true;
+
+            final Sender.Callback callback = delivered -> Outbox.this.execute(() -> {
+                Outbox.this.mDraining = false;
+
+                if (delivered > 0) {
+                    Outbox.this.acknowledge(entries.subList(0, delivered));
+                }
+
+                if (delivered == entries.size()) {
+                    Outbox.this.mRetryDelay = INITIAL_RETRY_DELAY;
+                    Outbox.this.drain();
+                } else {
+                    Outbox.this.scheduleRetry();
+                }
+            });
+
+            Outbox.this.mMainHandler.post(() -> sender.send(entries, callback));
+        });
+    }
+
+    /**
+     * Drains again once the backoff is up, unless that's already on its way. Call it on the
+     * outbox thread.
+     */
+    private void scheduleRetry() {
+        if (this.mRetryScheduled) {
+            return;
+        }
+
+        this.mRetryScheduled = true;
+        long delay = this.mRetryDelay;
+        this.mRetryDelay = Math.min(this.mRetryDelay * 2, MAX_RETRY_DELAY);
+
+        this.mMainHandler.postDelayed(() -> Outbox.this.execute(() -> {
+            Outbox.this.mRetryScheduled = false;
+            Outbox.this.drain();
+        }), delay);
+    }
+
+    private void execute(Runnable task) {
+        this.mExecutor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                RestLog.e(TAG, "Outbox task failed", e);
+            }
+        });
+    }
+
+    private List<Entry> readPending(int limit) {
+        List<Entry> entries = new ArrayList<>();
+
+        try {
+            for (OutboxLog.Record<Entry> record : this.mLog.read(limit, this::parse)) {
+                record.value.end = record.end;
+                entries.add(record.value);
+            }
+        } catch (IOException e) {
+            RestLog.e(TAG, "Couldn't read the outbox", e);
+        }
+
+        return entries;
+    }
+
+    private Entry parse(String line) {
+        try {
+            JSONObject json = new JSONObject(line);
+
+            Map<String, String> parameters = new LinkedHashMap<>();
+            JSONObject p = json.getJSONObject("parameters");
+            for (Iterator<String> keys = p.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                parameters.put(key, p.getString(key));
+            }
+
+            Map<String, File> files = new LinkedHashMap<>();
+            JSONObject f = json.getJSONObject("files");
+            for (Iterator<String> keys = f.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                files.put(key, new File(this.mDirectory, f.getString(key)));
+            }
+
+            String idempotencyKey = json.has("idempotency_key") ? json.getString("idempotency_key") : null;
+
+            return new Entry(json.getString("id"), json.getString("path"), parameters, files, idempotencyKey);
+        } catch (JSONException e) {
+            RestLog.w(TAG, "Skipping unreadable outbox entry");
+            return null;
+        }
+    }
+
+    private void acknowledge(List<Entry> delivered) {
+        for (Entry entry : delivered) {
+            for (File file : entry.files.values()) {
+                file.delete();
+            }
+        }
+
+        try {
+            this.mLog.acknowledge(delivered.get(delivered.size() - 1).end);
+        } catch (IOException e) {
+            RestLog.w(TAG, "Couldn't update the outbox offset", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.doorbell.android;
+
+import android.app.Activity;
+import android.content.Context;
+import android.net.ConnectivityManager;
+
+import io.doorbell.core.outbox.OutboxLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+// Before API 23, so being offline is only a matter of having no active NetworkInfo
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 22)
+public class DoorbellOutboxTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void offlineTrackIsQueuedInTheOutbox() throws InterruptedException, IOException, JSONException {
+        Activity activity = Robolectric.buildActivity(Activity.class).create().get();
+        activity.setTheme(androidx.appcompat.R.style.Theme_AppCompat);
+
+        // The outbox asks the application context
+        ConnectivityManager cm = (ConnectivityManager) activity.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        shadowOf(cm).setActiveNetworkInfo(null);
+
+        Doorbell doorbell = new Doorbell(activity, 123, "secret");
+        doorbell.track("user-1", "purchase", new JSONObject().put("amount", 5));
+
+        List<OutboxLog.Record<JSONObject>> records = this.awaitQueued(new OutboxLog(new File(activity.getFilesDir(), "doorbell_outbox")));
+        assertEquals(1, records.size());
+
+        JSONObject entry = records.get(0).value;
+        assertTrue(entry.getString("path"), entry.getString("path").startsWith("applications/123/event?"));
+        assertEquals("user-1", entry.getJSONObject("parameters").getString("external_user_id"));
+        assertEquals("purchase", entry.getJSONObject("parameters").getString("name"));
+    }
+
+    /**
+     * The outbox writes on a thread of its own.
+     */
+    private List<OutboxLog.Record<JSONObject>> awaitQueued(OutboxLog log) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        List<OutboxLog.Record<JSONObject>> records = log.read(10, DoorbellOutboxTest::parse);
+        while (records.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            records = log.read(10, DoorbellOutboxTest::parse);
+        }
+
+        return records;
+    }
+
+    private static JSONObject parse(String line) {
+        try {
+            return new JSONObject(line);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package io.doorbell.android.manavo.rest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RestDispatcherTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private RestDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        this.dispatcher = new RestDispatcher();
+        this.dispatcher.setMaxRequests(1);
+    }
+
+    @Test
+    public void backingOffGivesUpTheSlot() throws InterruptedException {
+        final CountDownLatch retried = new CountDownLatch(1);
+        final CountDownLatch otherRan = new CountDownLatch(1);
+        final AtomicInteger delayedWhileOtherRan = new AtomicInteger(-1);
+
+        TestCall backingOff = new TestCall() {
+            @Override
+            protected void execute() {
+                if (this.runs.incrementAndGet() == 1) {
+                    this.retryAfter(200);
+                } else {
+                    retried.countDown();
+                }
+            }
+        };
+
+        TestCall other = new TestCall() {
+            @Override
+            protected void execute() {
+                delayedWhileOtherRan.set(RestDispatcherTest.this.dispatcher.delayedCallsCount());
+                otherRan.countDown();
+            }
+        };
+
+        this.dispatcher.enqueue(backingOff);
+        this.dispatcher.enqueue(other);
+
+        // Only one call at a time, so the other one only runs if the first makes room while it waits
+        assertTrue(otherRan.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, delayedWhileOtherRan.get());
+
+        assertTrue(retried.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, backingOff.runs.get());
+    }
+
+    @Test
+    public void cancelingABackingOffCallDropsIt() throws InterruptedException {
+        TestCall call = new TestCall() {
+            @Override
+            protected void execute() {
+                this.runs.incrementAndGet();
+                this.retryAfter(200);
+            }
+        };
+
+        this.dispatcher.enqueue(call);
+        this.awaitDelayed(1);
+
+        call.cancel();
+        call.cancel();
+        assertTrue(call.isCanceled());
+        assertEquals(0, this.dispatcher.delayedCallsCount());
+        assertEquals(1, call.dropped.get());
+
+        Thread.sleep(400);
+        assertEquals(1, call.runs.get());
+        assertEquals(1, call.dropped.get());
+        assertEquals(0, this.dispatcher.queuedCallsCount());
+        assertEquals(0, this.dispatcher.runningCallsCount());
+    }
+
+    @Test
+    public void cancelAllIncludesBackingOffCalls() throws InterruptedException {
+        TestCall call = new TestCall() {
+            @Override
+            protected void execute() {
+                this.runs.incrementAndGet();
+                this.retryAfter(200);
+            }
+        };
+
+        this.dispatcher.enqueue(call);
+        this.awaitDelayed(1);
+
+        this.dispatcher.cancelAll(TestCall.TAG);
+        assertTrue(call.isCanceled());
+        assertEquals(0, this.dispatcher.delayedCallsCount());
+        assertEquals(1, call.dropped.get());
+    }
+
+    @Test
+    public void cancelingAQueuedCallDropsIt() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        TestCall blocking = new TestCall() {
+            @Override
+            protected void execute() {
+                running.countDown();
+                try {
+                    release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        TestCall queued = new TestCall() {
+            @Override
+            protected void execute() {
+                this.runs.incrementAndGet();
+            }
+        };
+
+        this.dispatcher.enqueue(blocking);
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        this.dispatcher.enqueue(queued);
+        assertEquals(1, this.dispatcher.queuedCallsCount());
+
+        queued.cancel();
+        assertEquals(0, this.dispatcher.queuedCallsCount());
+        assertEquals(1, queued.dropped.get());
+
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals(0, queued.runs.get());
+        assertEquals(0, blocking.dropped.get());
+    }
+
+    @Test
+    public void cancelingWhileStartingToBackOffDropsIt() throws InterruptedException {
+        TestCall call = new TestCall() {
+            @Override
+            protected void execute() {
+                this.runs.incrementAndGet();
+                this.cancel();
+                this.retryAfter(0);
+            }
+        };
+
+        this.dispatcher.enqueue(call);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (call.dropped.get() == 0) {
+            assertTrue("not dropped", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        Thread.sleep(100);
+        assertEquals(1, call.runs.get());
+        assertEquals(1, call.dropped.get());
+        assertEquals(0, this.dispatcher.delayedCallsCount());
+    }
+
+    private void awaitDelayed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (this.dispatcher.delayedCallsCount() != count) {
+            assertTrue("no call backing off", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private abstract static class TestCall extends RestDispatcher.AsyncCall {
+        static final Object TAG = new Object();
+
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger dropped = new AtomicInteger();
+
+        TestCall() {
+            super(TAG, "example.com");
+        }
+
+        @Override
+        protected void onDropped() {
+            this.dropped.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.doorbell.android.manavo.rest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RestLogTest {
+
+    @After
+    public void tearDown() {
+        RestLog.setMaxPayloadLength(1024);
+    }
+
+    @Test
+    public void redactsSecrets() {
+        assertEquals("https://doorbell.io/api/applications/1/open?key=<redacted>&sdk=android",
+                RestLog.payload("https://doorbell.io/api/applications/1/open?key=abc123&sdk=android"));
+        assertEquals("{\"email\":\"a@b.c\",\"password\":\"<redacted>\"}",
+                RestLog.payload("{\"email\":\"a@b.c\",\"password\":\"hunter2\"}"));
+    }
+
+    @Test
+    public void redactsSecretsCutOffByTheTruncation() {
+        String json = "{\"password\":\"hunter2\"}";
+        RestLog.setMaxPayloadLength(json.indexOf("hunter2") + 4);
+
+        String logged = RestLog.payload(json);
+        assertFalse(logged, logged.contains("hunt"));
+
+        String form = "message=hi&token=supersecret";
+        RestLog.setMaxPayloadLength(form.length() - 3);
+
+        logged = RestLog.payload(form);
+        assertFalse(logged, logged.contains("supersec"));
+    }
+
+    @Test
+    public void truncatesLongPayloads() {
+        RestLog.setMaxPayloadLength(5);
+
+        assertEquals("abcde... (3 more chars)", RestLog.payload("abcdefgh"));
+        assertEquals("abcde", RestLog.payload("abcde"));
+        assertEquals("null", RestLog.payload(null));
+    }
+
+    @Test
+    public void buildsMessagesOnlyWhenLoggable() {
+        int level = RestLog.getLevel();
+        try {
+            RestLog.setLevel(RestLog.NONE);
+
+            final boolean[] built = {false};
+            RestLog.w("RestLogTest", () -> {
+                built[0] = true;
+                return "built";
+            }, new Exception());
+
+            assertFalse(built[0]);
+        } finally {
+            RestLog.setLevel(level);
+        }
+    }
+}
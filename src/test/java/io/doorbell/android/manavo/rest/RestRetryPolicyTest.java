@@ -0,0 +1,75 @@
+package io.doorbell.android.manavo.rest;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RestRetryPolicyTest {
+
+    @Test
+    public void retriesNetworkErrorsAndRetryableStatusesUpToTheLimit() {
+        RestRetryPolicy policy = new RestRetryPolicy().setMaxAttempts(3);
+
+        assertTrue(policy.shouldRetry(1, -1));
+        assertTrue(policy.shouldRetry(1, 503));
+        assertTrue(policy.shouldRetry(2, 429));
+        assertFalse(policy.shouldRetry(3, 503));
+        assertFalse(policy.shouldRetry(1, 404));
+        assertFalse(policy.shouldRetry(1, 400));
+    }
+
+    @Test
+    public void retriesOnlyTheConfiguredStatuses() {
+        RestRetryPolicy policy = new RestRetryPolicy().setRetryOnStatus(Collections.singleton(404));
+
+        assertTrue(policy.shouldRetry(1, 404));
+        assertFalse(policy.shouldRetry(1, 503));
+    }
+
+    @Test
+    public void noneNeverRetries() {
+        assertFalse(RestRetryPolicy.NONE.shouldRetry(1, -1));
+        assertFalse(RestRetryPolicy.NONE.shouldRetry(1, 503));
+    }
+
+    @Test
+    public void retriesPostsOnlyWithAnIdempotencyKey() {
+        RestRetryPolicy policy = new RestRetryPolicy();
+
+        assertFalse(policy.isRetryable("POST", false));
+        assertTrue(policy.isRetryable("post", true));
+        assertTrue(policy.isRetryable("GET", false));
+        assertTrue(policy.isRetryable("PUT", false));
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyUpToTheMaximum() {
+        RestRetryPolicy policy = new RestRetryPolicy().setBackoff(100, 1000, 2).setJitter(0);
+
+        assertEquals(100, policy.backoff(1));
+        assertEquals(200, policy.backoff(2));
+        assertEquals(400, policy.backoff(3));
+        assertEquals(800, policy.backoff(4));
+        assertEquals(1000, policy.backoff(5));
+        assertEquals(1000, policy.backoff(20));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        RestRetryPolicy policy = new RestRetryPolicy().setBackoff(1000, 1000, 2).setJitter(0.5);
+
+        for (int i = 0; i < 1000; i++) {
+            long backoff = policy.backoff(1);
+            assertTrue("backoff " + backoff, backoff >= 500 && backoff <= 1000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atLeastOneAttempt() {
+        new RestRetryPolicy().setMaxAttempts(0);
+    }
+}